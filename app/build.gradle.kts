@@ -48,7 +48,11 @@ dependencies {
     implementation(libs.firebase.messaging)
     implementation(libs.firebase.storage)
     implementation(libs.glide)
+    implementation(libs.glide.recyclerview)
     implementation(libs.core.ktx)
+    implementation(libs.asynclayoutinflater)
+    implementation(libs.work.runtime)
+    implementation(libs.lifecycle.process)
 
     // Agregar OkHttp para envío de notificaciones
     implementation("com.squareup.okhttp3:okhttp:4.12.0")
@@ -0,0 +1,132 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compara el costo de decodificar un mensaje con {@link MessageCodec} contra {@code toObject(Message.class)}.
+ * Usa una instancia de Firestore aparte, sin red, para leer snapshots reales desde la caché local.
+ * Los tiempos quedan en logcat con el tag "MessageCodecBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageCodecBenchmark {
+
+    private static final String TAG = "MessageCodecBenchmark";
+    private static final int MESSAGE_COUNT = 500;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 20;
+
+    private FirebaseApp benchmarkApp;
+    private FirebaseFirestore firestore;
+    private List<DocumentSnapshot> documents;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        FirebaseApp defaultApp = FirebaseApp.initializeApp(context);
+        assertNotNull(defaultApp);
+        benchmarkApp = FirebaseApp.initializeApp(context, defaultApp.getOptions(), "codec-benchmark-" + UUID.randomUUID());
+
+        firestore = FirebaseFirestore.getInstance(benchmarkApp);
+        Tasks.await(firestore.disableNetwork());
+
+        // Las escrituras sin red quedan pendientes, pero ya son visibles en la caché local
+        CollectionReference messages = firestore.collection("benchmark").document("codec").collection("messages");
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Message message = new Message("Mensaje de prueba número " + i, "sender", "Emisor",
+                    "receiver", "Receptor", "sender_receiver");
+            message.setTimestamp(new Date(1_700_000_000_000L + i * 1000L));
+            messages.document("m" + i).set(MessageCodec.encode(message));
+        }
+
+        QuerySnapshot snapshot = Tasks.await(messages.get(Source.CACHE));
+        documents = snapshot.getDocuments();
+        assertEquals(MESSAGE_COUNT, documents.size());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Tasks.await(firestore.terminate());
+        Tasks.await(firestore.clearPersistence());
+        benchmarkApp.delete();
+    }
+
+    @Test
+    public void codecMatchesToObject() {
+        for (DocumentSnapshot document : documents) {
+            Message expected = document.toObject(Message.class);
+            Message actual = MessageCodec.decode(document);
+            assertNotNull(expected);
+            assertEquals(expected.getText(), actual.getText());
+            assertEquals(expected.getSenderId(), actual.getSenderId());
+            assertEquals(expected.getSenderName(), actual.getSenderName());
+            assertEquals(expected.getReceiverId(), actual.getReceiverId());
+            assertEquals(expected.getReceiverName(), actual.getReceiverName());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getConversationId(), actual.getConversationId());
+            assertEquals(expected.getMessageType(), actual.getMessageType());
+            assertEquals(document.getId(), actual.getId());
+        }
+    }
+
+    @Test
+    public void decodeCostPerMessage() {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decodeWithToObject();
+            decodeWithCodec();
+        }
+
+        long toObjectNanos = 0;
+        long codecNanos = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            toObjectNanos += decodeWithToObject();
+            codecNanos += decodeWithCodec();
+        }
+
+        long decoded = (long) MEASURED_ROUNDS * MESSAGE_COUNT;
+        long toObjectPerMessage = toObjectNanos / decoded;
+        long codecPerMessage = codecNanos / decoded;
+        Log.i(TAG, "toObject: " + toObjectPerMessage + " ns/mensaje");
+        Log.i(TAG, "MessageCodec: " + codecPerMessage + " ns/mensaje");
+        Log.i(TAG, String.format("Relación toObject / codec: %.2fx", (double) toObjectNanos / codecNanos));
+    }
+
+    private long decodeWithToObject() {
+        long start = System.nanoTime();
+        for (DocumentSnapshot document : documents) {
+            Message message = document.toObject(Message.class);
+            message.setId(document.getId());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long decodeWithCodec() {
+        long start = System.nanoTime();
+        for (DocumentSnapshot document : documents) {
+            MessageCodec.decode(document);
+        }
+        return System.nanoTime() - start;
+    }
+}
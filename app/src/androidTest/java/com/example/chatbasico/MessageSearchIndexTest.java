@@ -0,0 +1,202 @@
+package com.example.chatbasico;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Prueba el índice de búsqueda sobre una base de datos en memoria:
+ * qué se indexa, la búsqueda sin acentos y por prefijo, el orden por relevancia,
+ * el límite de candidatos y el tiempo de un prefijo común sobre un índice grande.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageSearchIndexTest {
+
+    private static final String CONVERSATION_ID = "a_b";
+    // Mensajes del índice grande y tiempo máximo de búsqueda sobre él
+    private static final int LARGE_INDEX_SIZE = 200_000;
+    private static final long MAX_SEARCH_MS = 1_000;
+
+    private ChatDatabase database;
+    private MessageSearchIndex searchIndex;
+    private int nextMessage = 0;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = new ChatDatabase(context, null);
+        searchIndex = new MessageSearchIndex(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void indexesOnlyTextMessages() {
+        String textId = store("foto de la playa", Message.TYPE_TEXT);
+        store("foto de la playa", Message.TYPE_IMAGE);
+
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("playa", 10);
+        assertEquals(1, hits.size());
+        assertEquals(textId, hits.get(0).messageId);
+        assertEquals(CONVERSATION_ID, hits.get(0).conversationId);
+    }
+
+    @Test
+    public void matchesWithoutDiacriticsAndByPrefix() {
+        String id = store("Te mando la canción mañana", Message.TYPE_TEXT);
+
+        assertEquals(id, searchIndex.searchNow("cancion", 10).get(0).messageId);
+        assertEquals(id, searchIndex.searchNow("CANCIÓN", 10).get(0).messageId);
+        assertEquals(id, searchIndex.searchNow("manana", 10).get(0).messageId);
+        assertEquals(id, searchIndex.searchNow("canc", 10).get(0).messageId);
+        assertTrue(searchIndex.searchNow("cancionero", 10).isEmpty());
+    }
+
+    @Test
+    public void updatingMessageReplacesItsIndexEntry() {
+        String id = store("texto original", Message.TYPE_TEXT);
+        update(id, "texto editado");
+
+        assertTrue(searchIndex.searchNow("original", 10).isEmpty());
+        assertEquals(1, searchIndex.searchNow("texto", 10).size());
+    }
+
+    @Test
+    public void ranksWholeMatchSetNotOnlyRecentRows() {
+        // El mensaje más relevante es el más antiguo; detrás quedan muchas coincidencias más recientes
+        String mostRelevant = store("reunión reunión reunión del lunes", Message.TYPE_TEXT);
+        for (int i = 0; i < 1_000; i++) {
+            store("nota " + i + " sobre la reunión", Message.TYPE_TEXT);
+        }
+
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("reunion", 5);
+        assertEquals(5, hits.size());
+        assertEquals(mostRelevant, hits.get(0).messageId);
+        for (int i = 1; i < hits.size(); i++) {
+            assertTrue(hits.get(i - 1).score >= hits.get(i).score);
+        }
+    }
+
+    @Test
+    public void capsCandidatesToMostRecentlyStored() {
+        // Más allá de MAX_CANDIDATES coincidencias más recientes, una vieja no se puntúa
+        String oldest = store("viaje viaje viaje", Message.TYPE_TEXT);
+        storeMany(MessageSearchIndex.MAX_CANDIDATES, "otro viaje");
+
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("viaje", 5);
+        assertEquals(5, hits.size());
+        for (MessageSearchIndex.SearchHit hit : hits) {
+            assertNotEquals(oldest, hit.messageId);
+        }
+    }
+
+    @Test
+    public void shortTermsAreNotPrefixes() {
+        String id = store("voy a ir", Message.TYPE_TEXT);
+        store("amigo", Message.TYPE_TEXT);
+
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("a", 10);
+        assertEquals(1, hits.size());
+        assertEquals(id, hits.get(0).messageId);
+    }
+
+    @Test
+    public void commonPrefixOnLargeIndexIsFast() {
+        storeMany(LARGE_INDEX_SIZE, "hola como estas");
+
+        long start = System.nanoTime();
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("ho", 20);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(20, hits.size());
+        assertTrue("Búsqueda en " + elapsedMs + " ms", elapsedMs < MAX_SEARCH_MS);
+    }
+
+    @Test
+    public void equalScoresOrderedByRecency() {
+        store("hola", Message.TYPE_TEXT);
+        store("hola", Message.TYPE_TEXT);
+        String newest = store("hola", Message.TYPE_TEXT);
+
+        List<MessageSearchIndex.SearchHit> hits = searchIndex.searchNow("hola", 2);
+        assertEquals(2, hits.size());
+        assertEquals(newest, hits.get(0).messageId);
+        assertTrue(hits.get(0).timestampMillis > hits.get(1).timestampMillis);
+    }
+
+    // Guarda un mensaje como lo hace MessageStore: fila + índice en la misma transacción
+    private String store(String text, String type) {
+        String messageId = "m" + nextMessage;
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabase.COL_CONVERSATION_ID, CONVERSATION_ID);
+        values.put(ChatDatabase.COL_MESSAGE_ID, messageId);
+        values.put(ChatDatabase.COL_SENDER_NAME, "Emisor");
+        values.put(ChatDatabase.COL_TEXT, text);
+        values.put(ChatDatabase.COL_TIMESTAMP_MICROS, 1_700_000_000_000_000L + nextMessage * 1_000_000L);
+        values.put(ChatDatabase.COL_MESSAGE_TYPE, type);
+        nextMessage++;
+
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long rowId = db.insertOrThrow(ChatDatabase.TABLE_MESSAGES, null, values);
+            MessageSearchIndex.index(db, rowId, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return messageId;
+    }
+
+    // Muchos mensajes iguales en una sola transacción (más rápido que store() uno por uno)
+    private void storeMany(int count, String text) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                ContentValues values = new ContentValues();
+                values.put(ChatDatabase.COL_CONVERSATION_ID, CONVERSATION_ID);
+                values.put(ChatDatabase.COL_MESSAGE_ID, "m" + nextMessage);
+                values.put(ChatDatabase.COL_SENDER_NAME, "Emisor");
+                values.put(ChatDatabase.COL_TEXT, text);
+                values.put(ChatDatabase.COL_TIMESTAMP_MICROS, 1_700_000_000_000_000L + nextMessage * 1_000_000L);
+                values.put(ChatDatabase.COL_MESSAGE_TYPE, Message.TYPE_TEXT);
+                nextMessage++;
+                long rowId = db.insertOrThrow(ChatDatabase.TABLE_MESSAGES, null, values);
+                MessageSearchIndex.index(db, rowId, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void update(String messageId, String text) {
+        SQLiteDatabase db = database.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabase.COL_TEXT, text);
+        values.put(ChatDatabase.COL_MESSAGE_TYPE, Message.TYPE_TEXT);
+        String[] key = new String[]{CONVERSATION_ID, messageId};
+        db.update(ChatDatabase.TABLE_MESSAGES, values,
+                ChatDatabase.COL_CONVERSATION_ID + " = ? AND " + ChatDatabase.COL_MESSAGE_ID + " = ?", key);
+        long rowId = DatabaseUtils.longForQuery(db, "SELECT rowid FROM " + ChatDatabase.TABLE_MESSAGES
+                + " WHERE " + ChatDatabase.COL_CONVERSATION_ID + " = ? AND " + ChatDatabase.COL_MESSAGE_ID + " = ?", key);
+        MessageSearchIndex.index(db, rowId, values);
+    }
+}
@@ -1,110 +1,215 @@
 package com.example.chatbasico;
 
+import android.graphics.drawable.Drawable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
-import android.widget.ProgressBar;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.widget.AppCompatTextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
-import com.bumptech.glide.Glide;
-import java.text.SimpleDateFormat;
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.google.android.material.progressindicator.CircularProgressIndicator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Future;
 
-public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
+        implements ListPreloader.PreloadModelProvider<MessageRow>, ListPreloader.PreloadSizeProvider<MessageRow> {
 
-    private static final int VIEW_TYPE_SENT_TEXT = 1;
-    private static final int VIEW_TYPE_RECEIVED_TEXT = 2;
-    private static final int VIEW_TYPE_SENT_IMAGE = 3;
-    private static final int VIEW_TYPE_RECEIVED_IMAGE = 4;
-    
-    private List<Message> messages;
-    private String currentUserId;
-    private SimpleDateFormat dateFormat;
+    static final int VIEW_TYPE_SENT_TEXT = 1;
+    static final int VIEW_TYPE_RECEIVED_TEXT = 2;
+    static final int VIEW_TYPE_SENT_IMAGE = 3;
+    static final int VIEW_TYPE_RECEIVED_IMAGE = 4;
+
+    private static final int NO_REINDEX = -1;
+
+    // Cuántas filas a cada lado de la que se bindea se dejan midiendo en segundo plano
+    private static final int TEXT_PREFETCH_DISTANCE = 8;
     
-    public ChatAdapter(List<Message> messages, String currentUserId) {
-        this.messages = messages;
-        this.currentUserId = currentUserId;
-        this.dateFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+    // Dos filas son el mismo ítem si tienen el mismo ID de documento
+    private static final DiffUtil.ItemCallback<MessageRow> DIFF_CALLBACK = new DiffUtil.ItemCallback<MessageRow>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull MessageRow oldItem, @NonNull MessageRow newItem) {
+            return Objects.equals(oldItem.id, newItem.id);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MessageRow oldItem, @NonNull MessageRow newItem) {
+            return oldItem.sameContentAs(newItem);
+        }
+    };
+
+    // El diff se calcula en segundo plano y solo se notifican las filas que cambiaron
+    private final AsyncListDiffer<MessageRow> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    // Última lista enviada al differ (puede no estar aplicada aún) e índice ID → posición sobre ella
+    private List<MessageRow> pendingRows = new ArrayList<>();
+    private final Map<String, Integer> positionById = new HashMap<>();
+
+    // IDs estables numéricos para RecyclerView, asignados por ID de documento
+    private final Map<String, Long> stableIds = new HashMap<>();
+    private long nextStableId = 1;
+
+    // Texto ya medido por ID de mensaje; los parámetros salen del primer TextView bindeado de cada tipo
+    private final MessageTextCache textCache = new MessageTextCache();
+    private PrecomputedTextCompat.Params sentTextParams;
+    private PrecomputedTextCompat.Params receivedTextParams;
+
+    // Vistas pre-infladas y estadísticas de creación/reutilización de holders
+    private final ChatViewPool viewPool;
+
+    // Imágenes: mismo RequestManager para mostrar y precargar, así la precarga cae en la misma caché
+    private final RequestManager glide;
+    private final int imageViewWidth;
+
+    // Las filas llegan ya armadas (ver MessageRowFactory); el adaptador no formatea nada
+    public ChatAdapter(ChatViewPool viewPool, RequestManager glide) {
+        this.viewPool = viewPool;
+        this.glide = glide;
+        this.imageViewWidth = viewPool.getThemedContext().getResources()
+                .getDimensionPixelSize(R.dimen.chat_image_width);
+        setHasStableIds(true);
+    }
+
+    private MessageRow getItem(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String id = getItem(position).id;
+        Long stableId = stableIds.get(id);
+        if (stableId == null) {
+            stableId = nextStableId++;
+            stableIds.put(id, stableId);
+        }
+        return stableId;
     }
     
     @Override
     public int getItemViewType(int position) {
-        Message message = messages.get(position);
-        boolean isSent = message.getSenderId().equals(currentUserId);
-        boolean isImage = message.isImageMessage();
-        
-        if (isSent && isImage) {
-            return VIEW_TYPE_SENT_IMAGE;
-        } else if (isSent && !isImage) {
-            return VIEW_TYPE_SENT_TEXT;
-        } else if (!isSent && isImage) {
-            return VIEW_TYPE_RECEIVED_IMAGE;
-        } else {
-            return VIEW_TYPE_RECEIVED_TEXT;
-        }
+        return getItem(position).viewType;
     }
     
     @NonNull
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        // Primero una fila pre-inflada en segundo plano; si no hay, se infla acá.
+        // Siempre con el contexto de la app: los holders pasan al pool compartido y no deben retener la Activity.
+        View view = viewPool.takePreinflated(viewType);
+        if (view == null) {
+            view = LayoutInflater.from(viewPool.getThemedContext())
+                    .inflate(ChatViewPool.layoutFor(viewType), parent, false);
+        }
+
+        RecyclerView.ViewHolder holder;
         switch (viewType) {
-            case VIEW_TYPE_SENT_TEXT:
-                View sentTextView = LayoutInflater.from(parent.getContext())
-                        .inflate(R.layout.item_message_sent, parent, false);
-                return new SentMessageViewHolder(sentTextView);
-                
             case VIEW_TYPE_RECEIVED_TEXT:
-                View receivedTextView = LayoutInflater.from(parent.getContext())
-                        .inflate(R.layout.item_message_received, parent, false);
-                return new ReceivedMessageViewHolder(receivedTextView);
-                
+                holder = new ReceivedMessageViewHolder(view);
+                break;
             case VIEW_TYPE_SENT_IMAGE:
-                View sentImageView = LayoutInflater.from(parent.getContext())
-                        .inflate(R.layout.item_image_sent, parent, false);
-                return new SentImageViewHolder(sentImageView);
-                
+                holder = new SentImageViewHolder(view);
+                break;
             case VIEW_TYPE_RECEIVED_IMAGE:
-                View receivedImageView = LayoutInflater.from(parent.getContext())
-                        .inflate(R.layout.item_image_received, parent, false);
-                return new ReceivedImageViewHolder(receivedImageView);
-                
+                holder = new ReceivedImageViewHolder(view);
+                break;
+            case VIEW_TYPE_SENT_TEXT:
             default:
-                View defaultView = LayoutInflater.from(parent.getContext())
-                        .inflate(R.layout.item_message_sent, parent, false);
-                return new SentMessageViewHolder(defaultView);
+                holder = new SentMessageViewHolder(view);
+                break;
         }
+        return holder;
     }
     
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messages.get(position);
-        switch (getItemViewType(position)) {
+        // Cada holder sabe si ya se bindeó antes (también en otra pantalla, vía el pool compartido)
+        MessageHolder messageHolder = (MessageHolder) holder;
+        if (messageHolder.bound) {
+            viewPool.onHolderReused();
+        }
+        messageHolder.bound = true;
+
+        MessageRow row = getItem(position);
+        switch (row.viewType) {
             case VIEW_TYPE_SENT_TEXT:
-                ((SentMessageViewHolder) holder).bind(message, position);
+                SentMessageViewHolder sentHolder = (SentMessageViewHolder) holder;
+                if (sentTextParams == null) {
+                    sentTextParams = TextViewCompat.getTextMetricsParams(sentHolder.textMessage);
+                }
+                sentHolder.bind(row, textCache.get(row, sentTextParams));
                 break;
             case VIEW_TYPE_RECEIVED_TEXT:
-                ((ReceivedMessageViewHolder) holder).bind(message, position);
+                ReceivedMessageViewHolder receivedHolder = (ReceivedMessageViewHolder) holder;
+                if (receivedTextParams == null) {
+                    receivedTextParams = TextViewCompat.getTextMetricsParams(receivedHolder.textMessage);
+                }
+                receivedHolder.bind(row, textCache.get(row, receivedTextParams));
                 break;
             case VIEW_TYPE_SENT_IMAGE:
-                ((SentImageViewHolder) holder).bind(message, position);
+                ((SentImageViewHolder) holder).bind(row, glide);
                 break;
             case VIEW_TYPE_RECEIVED_IMAGE:
-                ((ReceivedImageViewHolder) holder).bind(message, position);
+                ((ReceivedImageViewHolder) holder).bind(row, glide);
                 break;
         }
+        prefetchTextAround(position);
+    }
+
+    // Mide en segundo plano el texto de las filas vecinas, que son las próximas en aparecer al hacer scroll.
+    // Las que ya están medidas o en cola no se vuelven a encolar
+    private void prefetchTextAround(int position) {
+        List<MessageRow> rows = differ.getCurrentList();
+        int from = Math.max(0, position - TEXT_PREFETCH_DISTANCE);
+        int to = Math.min(rows.size() - 1, position + TEXT_PREFETCH_DISTANCE);
+        for (int i = from; i <= to; i++) {
+            MessageRow row = rows.get(i);
+            if (row.viewType == VIEW_TYPE_SENT_TEXT && sentTextParams != null) {
+                textCache.prefetch(row, sentTextParams);
+            } else if (row.viewType == VIEW_TYPE_RECEIVED_TEXT && receivedTextParams != null) {
+                textCache.prefetch(row, receivedTextParams);
+            }
+        }
+    }
+
+    // Cancela las mediciones pendientes; llamar cuando se destruye la pantalla
+    public void release() {
+        textCache.release();
     }
     
     @Override
     public int getItemCount() {
-        return messages.size();
+        return differ.getCurrentList().size();
     }
     
     // ViewHolder para mensajes enviados
-    class SentMessageViewHolder extends RecyclerView.ViewHolder {
-        TextView textMessage;
+    // Base de los holders del chat: marca si ya se bindeó, para las estadísticas de reutilización
+    abstract static class MessageHolder extends RecyclerView.ViewHolder {
+        boolean bound;
+
+        MessageHolder(@NonNull View itemView) {
+            super(itemView);
+        }
+    }
+
+    static class SentMessageViewHolder extends MessageHolder {
+        AppCompatTextView textMessage;
         TextView textDateTime;
         
         SentMessageViewHolder(@NonNull View itemView) {
@@ -113,21 +218,17 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             textDateTime = itemView.findViewById(R.id.textDateTime);
         }
         
-        void bind(Message message, int position) {
-            textMessage.setText(message.getText());
-            // Si el mensaje tiene timestamp, mostrarlo. Si no, mostrar la hora actual del dispositivo
-            if (message.getTimestamp() != null) {
-                textDateTime.setText(dateFormat.format(message.getTimestamp()));
-            } else {
-                textDateTime.setText(dateFormat.format(System.currentTimeMillis()));
-            }
+        // El texto se asigna cuando la vista se mide; normalmente ya está calculado
+        void bind(MessageRow row, Future<PrecomputedTextCompat> text) {
+            textMessage.setTextFuture(text);
+            textDateTime.setText(row.formattedTime);
         }
     }
     
     // ViewHolder para mensajes recibidos
-    class ReceivedMessageViewHolder extends RecyclerView.ViewHolder {
+    static class ReceivedMessageViewHolder extends MessageHolder {
         TextView textSenderName;
-        TextView textMessage;
+        AppCompatTextView textMessage;
         TextView textDateTime;
         
         ReceivedMessageViewHolder(@NonNull View itemView) {
@@ -137,23 +238,95 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             textDateTime = itemView.findViewById(R.id.textDateTime);
         }
         
-        void bind(Message message, int position) {
-            textSenderName.setText(message.getSenderName());
-            textMessage.setText(message.getText());
-            // Si el mensaje tiene timestamp, mostrarlo. Si no, mostrar la hora actual del dispositivo
-            if (message.getTimestamp() != null) {
-                textDateTime.setText(dateFormat.format(message.getTimestamp()));
-            } else {
-                textDateTime.setText(dateFormat.format(System.currentTimeMillis()));
-            }
+        void bind(MessageRow row, Future<PrecomputedTextCompat> text) {
+            textSenderName.setText(row.senderName);
+            textMessage.setTextFuture(text);
+            textDateTime.setText(row.formattedTime);
         }
     }
     
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        // Liberar el bitmap de las filas que salen de pantalla
+        if (holder instanceof SentImageViewHolder) {
+            glide.clear(((SentImageViewHolder) holder).imageMessage);
+        } else if (holder instanceof ReceivedImageViewHolder) {
+            glide.clear(((ReceivedImageViewHolder) holder).imageMessage);
+        }
+    }
+
+    // Precarga (RecyclerViewPreloader): la imagen de la fila, si tiene
+    @NonNull
+    @Override
+    public List<MessageRow> getPreloadItems(int position) {
+        List<MessageRow> rows = differ.getCurrentList();
+        if (position < 0 || position >= rows.size() || !rows.get(position).hasImage()) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(rows.get(position));
+    }
+
+    @Nullable
+    @Override
+    public RequestBuilder<?> getPreloadRequestBuilder(@NonNull MessageRow row) {
+        return imageRequest(glide, row, imageViewWidth);
+    }
+
+    @Nullable
+    @Override
+    public int[] getPreloadSize(@NonNull MessageRow row, int adapterPosition, int perItemPosition) {
+        return new int[]{imageViewWidth, imageViewHeight(imageViewWidth, row)};
+    }
+
+    // La misma petición para mostrar y precargar: decodificada al tamaño exacto de la burbuja
+    private static RequestBuilder<Drawable> imageRequest(RequestManager glide, MessageRow row, int width) {
+        return glide.load(row.imageUrl)
+                .override(width, imageViewHeight(width, row))
+                .centerCrop()
+                .placeholder(R.drawable.ic_image)
+                .error(R.drawable.ic_image);
+    }
+
+    // Con las dimensiones del mensaje se reserva el alto de la imagen antes de que llegue el bitmap
+    // (el ancho es fijo en el layout); sin ellas queda cuadrada como antes
+    private static int imageViewHeight(int width, MessageRow row) {
+        if (!row.hasImageSize()) {
+            return width;
+        }
+        int height = Math.round(width * (float) row.imageHeight / row.imageWidth);
+        return Math.max(width / 2, Math.min(height, width * 3 / 2));
+    }
+
+    private static void bindImage(ImageView imageView, CircularProgressIndicator progressBar, MessageRow row, RequestManager glide) {
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        int height = imageViewHeight(params.width, row);
+        if (params.height != height) {
+            params.height = height;
+            imageView.setLayoutParams(params);
+        }
+
+        if (row.isUploading()) {
+            // Envío propio en curso: la imagen local con el progreso de la subida encima
+            progressBar.setVisibility(View.VISIBLE);
+            progressBar.setProgressCompat(row.uploadProgress, true);
+            imageRequest(glide, row, params.width).into(imageView);
+        } else if (row.hasImage()) {
+            progressBar.setVisibility(View.GONE);
+            imageRequest(glide, row, params.width).into(imageView);
+        } else {
+            progressBar.setVisibility(View.VISIBLE);
+            progressBar.setIndeterminate(true);
+            glide.clear(imageView);
+            imageView.setImageResource(R.drawable.ic_image);
+        }
+    }
+
     // ViewHolder para imágenes enviadas
-    class SentImageViewHolder extends RecyclerView.ViewHolder {
+    static class SentImageViewHolder extends MessageHolder {
         ImageView imageMessage;
         TextView textDateTime;
-        ProgressBar progressBar;
+        CircularProgressIndicator progressBar;
         
         SentImageViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -162,33 +335,18 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             progressBar = itemView.findViewById(R.id.progressBar);
         }
         
-        void bind(Message message, int position) {
-            if (message.getImageUrl() != null && !message.getImageUrl().isEmpty()) {
-                progressBar.setVisibility(View.GONE);
-                Glide.with(itemView.getContext())
-                        .load(message.getImageUrl())
-                        .placeholder(R.drawable.ic_image)
-                        .error(R.drawable.ic_image)
-                        .into(imageMessage);
-            } else {
-                progressBar.setVisibility(View.VISIBLE);
-                imageMessage.setImageResource(R.drawable.ic_image);
-            }
-            // Si el mensaje tiene timestamp, mostrarlo. Si no, mostrar la hora actual del dispositivo
-            if (message.getTimestamp() != null) {
-                textDateTime.setText(dateFormat.format(message.getTimestamp()));
-            } else {
-                textDateTime.setText(dateFormat.format(System.currentTimeMillis()));
-            }
+        void bind(MessageRow row, RequestManager glide) {
+            bindImage(imageMessage, progressBar, row, glide);
+            textDateTime.setText(row.formattedTime);
         }
     }
     
     // ViewHolder para imágenes recibidas
-    class ReceivedImageViewHolder extends RecyclerView.ViewHolder {
+    static class ReceivedImageViewHolder extends MessageHolder {
         TextView textSenderName;
         ImageView imageMessage;
         TextView textDateTime;
-        ProgressBar progressBar;
+        CircularProgressIndicator progressBar;
         
         ReceivedImageViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -198,37 +356,180 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             progressBar = itemView.findViewById(R.id.progressBar);
         }
         
-        void bind(Message message, int position) {
-            textSenderName.setText(message.getSenderName());
-            if (message.getImageUrl() != null && !message.getImageUrl().isEmpty()) {
-                progressBar.setVisibility(View.GONE);
-                Glide.with(itemView.getContext())
-                        .load(message.getImageUrl())
-                        .placeholder(R.drawable.ic_image)
-                        .error(R.drawable.ic_image)
-                        .into(imageMessage);
-            } else {
-                progressBar.setVisibility(View.VISIBLE);
-                imageMessage.setImageResource(R.drawable.ic_image);
+        void bind(MessageRow row, RequestManager glide) {
+            textSenderName.setText(row.senderName);
+            bindImage(imageMessage, progressBar, row, glide);
+            textDateTime.setText(row.formattedTime);
+        }
+    }
+    
+    // Método para agregar un mensaje nuevo (si ya está en la lista, se reemplaza)
+    public void addMessage(MessageRow row) {
+        addMessage(row, null);
+    }
+
+    public void addMessage(MessageRow row, Runnable onCommitted) {
+        Integer position = positionById.get(row.id);
+        List<MessageRow> newList = new ArrayList<>(pendingRows);
+        if (position != null) {
+            newList.set(position, row);
+            submit(newList, NO_REINDEX, onCommitted);
+        } else {
+            newList.add(row);
+            submit(newList, newList.size() - 1, onCommitted);
+        }
+    }
+
+    // Aplica todos los cambios de un snapshot en un solo diff (una sola actualización de la lista)
+    public void applyChanges(List<MessageRow> added, List<MessageRow> modified, List<String> removedIds,
+                             Runnable onCommitted) {
+        if (added.isEmpty() && modified.isEmpty() && removedIds.isEmpty()) {
+            if (onCommitted != null) {
+                onCommitted.run();
+            }
+            return;
+        }
+
+        // Primero los reemplazos, mientras el índice de posiciones sigue siendo válido
+        List<MessageRow> newList = new ArrayList<>(pendingRows.size() + added.size());
+        newList.addAll(pendingRows);
+        for (MessageRow row : modified) {
+            Integer position = positionById.get(row.id);
+            if (position != null) {
+                newList.set(position, row);
             }
-            // Si el mensaje tiene timestamp, mostrarlo. Si no, mostrar la hora actual del dispositivo
-            if (message.getTimestamp() != null) {
-                textDateTime.setText(dateFormat.format(message.getTimestamp()));
+        }
+        List<MessageRow> inserted = new ArrayList<>(added.size());
+        for (MessageRow row : added) {
+            Integer position = positionById.get(row.id);
+            if (position != null) {
+                newList.set(position, row);
             } else {
-                textDateTime.setText(dateFormat.format(System.currentTimeMillis()));
+                inserted.add(row);
+            }
+        }
+
+        int reindexFrom = newList.size();
+        if (!removedIds.isEmpty()) {
+            Set<String> removed = new HashSet<>(removedIds);
+            newList.removeIf(row -> removed.contains(row.id));
+            for (String removedId : removedIds) {
+                positionById.remove(removedId);
             }
+            reindexFrom = 0;
         }
+
+        // Los nuevos no siempre van al final: al borrar un mensaje de la ventana en vivo (limitToLast)
+        // entra uno más antiguo como ADDED. Cada uno se ubica por timestamp; casi siempre es la última posición
+        Collections.sort(inserted, ChatAdapter::compareByTime);
+        for (MessageRow row : inserted) {
+            int position = newList.size();
+            while (position > 0 && compareByTime(newList.get(position - 1), row) > 0) {
+                position--;
+            }
+            newList.add(position, row);
+            reindexFrom = Math.min(reindexFrom, position);
+        }
+        submit(newList, reindexFrom, onCommitted);
     }
-    
-    // Método para actualizar la lista de mensajes
-    public void updateMessages(List<Message> newMessages) {
-        this.messages = newMessages;
-        notifyDataSetChanged();
+
+    // Orden de la conversación: timestamp y, a igual timestamp, ID (como Firestore).
+    // Sin timestamp (escritura local sin confirmar) va después de todo
+    private static int compareByTime(MessageRow a, MessageRow b) {
+        Date timeA = a.message != null ? a.message.getTimestamp() : null;
+        Date timeB = b.message != null ? b.message.getTimestamp() : null;
+        if (timeA == null || timeB == null) {
+            return timeA == null ? (timeB == null ? 0 : 1) : -1;
+        }
+        int byTime = timeA.compareTo(timeB);
+        return byTime != 0 ? byTime : a.id.compareTo(b.id);
     }
-    
-    // Método para agregar un mensaje nuevo
-    public void addMessage(Message message) {
-        messages.add(message);
-        notifyItemInserted(messages.size() - 1);
+
+    // Fila de una imagen que se está subiendo: se agrega o se actualiza su progreso.
+    // Si el mensaje real ya llegó de Firestore (mismo ID), la fila pendiente no lo pisa.
+    public void showUploadingRow(MessageRow row) {
+        Integer position = positionById.get(row.id);
+        if (position != null && !pendingRows.get(position).isUploading()) {
+            return;
+        }
+        addMessage(row);
+    }
+
+    // Quita la fila de un envío abandonado (no toca el mensaje si ya llegó de Firestore)
+    public boolean removeUploadingRow(String messageId) {
+        Integer position = positionById.get(messageId);
+        if (position != null && pendingRows.get(position).isUploading()) {
+            removeMessage(messageId);
+            return true;
+        }
+        return false;
+    }
+
+    // Método para quitar un mensaje eliminado
+    public void removeMessage(String messageId) {
+        Integer position = positionById.get(messageId);
+        if (position == null) {
+            return;
+        }
+        List<MessageRow> newList = new ArrayList<>(pendingRows);
+        newList.remove((int) position);
+        positionById.remove(messageId);
+        submit(newList, position, null);
+    }
+
+    // Método para agregar una página de mensajes posteriores al final de la lista
+    public void addMessagesAtEnd(List<MessageRow> newerRows) {
+        addMessagesAtEnd(newerRows, null);
+    }
+
+    public void addMessagesAtEnd(List<MessageRow> newerRows, Runnable onCommitted) {
+        List<MessageRow> fresh = withoutKnown(newerRows);
+        if (fresh.isEmpty()) {
+            if (onCommitted != null) {
+                onCommitted.run();
+            }
+            return;
+        }
+        List<MessageRow> newList = new ArrayList<>(pendingRows.size() + fresh.size());
+        newList.addAll(pendingRows);
+        newList.addAll(fresh);
+        submit(newList, pendingRows.size(), onCommitted);
+    }
+
+    // Método para agregar una página de mensajes anteriores al inicio de la lista
+    public void addMessagesAtStart(List<MessageRow> olderRows) {
+        List<MessageRow> fresh = withoutKnown(olderRows);
+        if (fresh.isEmpty()) {
+            return;
+        }
+        List<MessageRow> newList = new ArrayList<>(pendingRows.size() + fresh.size());
+        newList.addAll(fresh);
+        newList.addAll(pendingRows);
+        submit(newList, 0, null);
+    }
+
+    // Filtra las filas que ya están en la lista (por ejemplo, si una página se solapa con la ventana en vivo)
+    private List<MessageRow> withoutKnown(List<MessageRow> candidates) {
+        List<MessageRow> fresh = new ArrayList<>(candidates.size());
+        for (MessageRow row : candidates) {
+            if (!positionById.containsKey(row.id)) {
+                fresh.add(row);
+            }
+        }
+        return fresh;
+    }
+
+    // reindexFrom: primera posición cuyo índice cambió (NO_REINDEX si ninguna)
+    private void submit(List<MessageRow> newList, int reindexFrom, Runnable onCommitted) {
+        pendingRows = newList;
+        if (reindexFrom == 0) {
+            positionById.clear();
+        }
+        if (reindexFrom != NO_REINDEX) {
+            for (int i = reindexFrom; i < newList.size(); i++) {
+                positionById.put(newList.get(i).id, i);
+            }
+        }
+        differ.submitList(newList, onCommitted);
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Base de datos local (SQLite) de la app.
+ * Guarda los mensajes ya descargados para poder mostrar las conversaciones sin esperar a la red
+ * y buscar en ellas sin conexión, y los usuarios ya vistos en el directorio.
+ */
+public class ChatDatabase extends SQLiteOpenHelper {
+
+    private static final String TAG = "ChatDatabase";
+    private static final String DATABASE_NAME = "chat_local.db";
+    private static final int DATABASE_VERSION = 4;
+
+    // Tabla de mensajes
+    public static final String TABLE_MESSAGES = "messages";
+    public static final String COL_CONVERSATION_ID = "conversation_id";
+    public static final String COL_MESSAGE_ID = "message_id";
+    public static final String COL_SENDER_ID = "sender_id";
+    public static final String COL_SENDER_NAME = "sender_name";
+    public static final String COL_RECEIVER_ID = "receiver_id";
+    public static final String COL_RECEIVER_NAME = "receiver_name";
+    public static final String COL_TEXT = "text";
+    // Timestamp del servidor en microsegundos, para no perder precisión al usarlo como cursor
+    public static final String COL_TIMESTAMP_MICROS = "timestamp_micros";
+    public static final String COL_MESSAGE_TYPE = "message_type";
+    public static final String COL_IMAGE_URL = "image_url";
+    public static final String COL_IMAGE_NAME = "image_name";
+    public static final String COL_IMAGE_WIDTH = "image_width";
+    public static final String COL_IMAGE_HEIGHT = "image_height";
+
+    // Índice de texto completo (FTS4); docid = rowid del mensaje en la tabla de mensajes
+    public static final String TABLE_MESSAGES_FTS = "messages_fts";
+    public static final String COL_FTS_TEXT = "text";
+
+    // Usuarios del directorio ya descargados (ver UserCache)
+    public static final String TABLE_USERS = "users";
+    public static final String COL_USER_ID = "user_id";
+    public static final String COL_USER_NOMBRE = "nombre";
+    public static final String COL_USER_EMAIL = "email";
+    public static final String COL_USER_NOMBRE_LOWER = "nombre_lower";
+    public static final String COL_USER_EMAIL_LOWER = "email_lower";
+    // updatedAt del servidor en microsegundos; la sincronización pide solo lo posterior
+    public static final String COL_USER_UPDATED_AT_MICROS = "updated_at_micros";
+
+    private static ChatDatabase instance;
+
+    public static synchronized ChatDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ChatDatabase(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    // Con nombre null la base queda en memoria (pruebas)
+    ChatDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // WAL permite leer mientras se escriben mensajes nuevos
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.d(TAG, "Creando base de datos local");
+
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COL_CONVERSATION_ID + " TEXT NOT NULL, "
+                + COL_MESSAGE_ID + " TEXT NOT NULL, "
+                + COL_SENDER_ID + " TEXT, "
+                + COL_SENDER_NAME + " TEXT, "
+                + COL_RECEIVER_ID + " TEXT, "
+                + COL_RECEIVER_NAME + " TEXT, "
+                + COL_TEXT + " TEXT, "
+                + COL_TIMESTAMP_MICROS + " INTEGER NOT NULL, "
+                + COL_MESSAGE_TYPE + " TEXT, "
+                + COL_IMAGE_URL + " TEXT, "
+                + COL_IMAGE_NAME + " TEXT, "
+                + COL_IMAGE_WIDTH + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_IMAGE_HEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + COL_CONVERSATION_ID + ", " + COL_MESSAGE_ID + "))");
+
+        // Las lecturas siempre son "últimos N de una conversación" o "N anteriores a un timestamp"
+        db.execSQL("CREATE INDEX idx_messages_conversation_time ON " + TABLE_MESSAGES
+                + " (" + COL_CONVERSATION_ID + ", " + COL_TIMESTAMP_MICROS + ")");
+
+        createSearchIndex(db);
+        createUsersTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "Actualizando base de datos local: " + oldVersion + " → " + newVersion);
+
+        if (oldVersion < 2) {
+            createSearchIndex(db);
+            // Indexar los mensajes de texto que ya estaban guardados
+            db.execSQL("INSERT INTO " + TABLE_MESSAGES_FTS + " (docid, " + COL_FTS_TEXT + ")"
+                    + " SELECT rowid, " + COL_TEXT + " FROM " + TABLE_MESSAGES
+                    + " WHERE (" + COL_MESSAGE_TYPE + " IS NULL OR " + COL_MESSAGE_TYPE + " = 'text')"
+                    + " AND " + COL_TEXT + " != ''");
+        }
+        if (oldVersion < 3) {
+            // Dimensiones de las imágenes; las filas existentes quedan en 0 (tamaño desconocido)
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN "
+                    + COL_IMAGE_WIDTH + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN "
+                    + COL_IMAGE_HEIGHT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 4) {
+            createUsersTable(db);
+        }
+    }
+
+    private void createUsersTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_USERS + " ("
+                + COL_USER_ID + " TEXT PRIMARY KEY, "
+                + COL_USER_NOMBRE + " TEXT, "
+                + COL_USER_EMAIL + " TEXT, "
+                + COL_USER_NOMBRE_LOWER + " TEXT NOT NULL DEFAULT '', "
+                + COL_USER_EMAIL_LOWER + " TEXT NOT NULL DEFAULT '', "
+                + COL_USER_UPDATED_AT_MICROS + " INTEGER NOT NULL DEFAULT 0)");
+
+        // El directorio se lista y se busca por prefijo sobre el nombre normalizado
+        db.execSQL("CREATE INDEX idx_users_nombre ON " + TABLE_USERS + " (" + COL_USER_NOMBRE_LOWER + ")");
+    }
+
+    private void createSearchIndex(SQLiteDatabase db) {
+        // unicode61 con remove_diacritics para que "cancion" encuentre "canción"
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_MESSAGES_FTS + " USING fts4("
+                + COL_FTS_TEXT + ", tokenize=unicode61 \"remove_diacritics=1\")");
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.appcompat.view.ContextThemeWrapper;
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayDeque;
+
+/**
+ * Vistas de filas de chat compartidas entre aperturas de {@code chats}.
+ * - Un {@link RecyclerView.RecycledViewPool} que sobrevive a la Activity: los holders que quedan
+ *   al cerrar la conversación se reutilizan al abrir la siguiente.
+ * - Un calentamiento que infla filas en segundo plano mientras se cargan los mensajes,
+ *   para que el primer scroll no tenga que inflar en el hilo principal.
+ * Las vistas se inflan con el contexto de la aplicación (con el tema de la app) para no retener la Activity.
+ * Se usa solo desde el hilo principal.
+ */
+public class ChatViewPool {
+
+    private static final String TAG = "ChatViewPool";
+
+    // Holders que se intentan tener listos por tipo de vista al abrir una conversación
+    public static final int DEFAULT_WARM_UP_PER_TYPE = 6;
+    private static final int MAX_RECYCLED_PER_TYPE = 15;
+
+    private static final int[] VIEW_TYPES = {
+            ChatAdapter.VIEW_TYPE_SENT_TEXT,
+            ChatAdapter.VIEW_TYPE_RECEIVED_TEXT,
+            ChatAdapter.VIEW_TYPE_SENT_IMAGE,
+            ChatAdapter.VIEW_TYPE_RECEIVED_IMAGE
+    };
+
+    private static ChatViewPool instance;
+
+    private final Context themedContext;
+    private final AsyncLayoutInflater asyncInflater;
+    private final RecyclerView.RecycledViewPool recycledViewPool = new RecyclerView.RecycledViewPool();
+
+    // Vistas infladas por el calentamiento que todavía no tienen holder
+    private final SparseArray<ArrayDeque<View>> preinflated = new SparseArray<>();
+    // Inflados en curso por tipo, para no pedir de más si se llama warmUp dos veces
+    private final SparseArray<Integer> inFlight = new SparseArray<>();
+
+    // Estadísticas: holders creados (inflando al vuelo o con vista pre-inflada) y holders reutilizados
+    private int createdOnDemand;
+    private int createdFromWarmUp;
+    private int reused;
+
+    private ChatViewPool(Context context) {
+        themedContext = new ContextThemeWrapper(context.getApplicationContext(), R.style.Theme_ChatBasico);
+        asyncInflater = new AsyncLayoutInflater(themedContext);
+        for (int viewType : VIEW_TYPES) {
+            recycledViewPool.setMaxRecycledViews(viewType, MAX_RECYCLED_PER_TYPE);
+        }
+    }
+
+    public static synchronized ChatViewPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatViewPool(context);
+        }
+        return instance;
+    }
+
+    public Context getThemedContext() {
+        return themedContext;
+    }
+
+    public RecyclerView.RecycledViewPool getRecycledViewPool() {
+        return recycledViewPool;
+    }
+
+    static int layoutFor(int viewType) {
+        switch (viewType) {
+            case ChatAdapter.VIEW_TYPE_RECEIVED_TEXT:
+                return R.layout.item_message_received;
+            case ChatAdapter.VIEW_TYPE_SENT_IMAGE:
+                return R.layout.item_image_sent;
+            case ChatAdapter.VIEW_TYPE_RECEIVED_IMAGE:
+                return R.layout.item_image_received;
+            case ChatAdapter.VIEW_TYPE_SENT_TEXT:
+            default:
+                return R.layout.item_message_sent;
+        }
+    }
+
+    /**
+     * Infla en segundo plano las filas que falten hasta tener {@code perType} listas por tipo
+     * (contando las que ya están en el pool compartido). El parent solo se usa para los LayoutParams.
+     */
+    public void warmUp(ViewGroup parent, int perType) {
+        for (int viewType : VIEW_TYPES) {
+            int ready = recycledViewPool.getRecycledViewCount(viewType)
+                    + queueFor(viewType).size()
+                    + inFlight.get(viewType, 0);
+            int missing = perType - ready;
+            for (int i = 0; i < missing; i++) {
+                inFlight.put(viewType, inFlight.get(viewType, 0) + 1);
+                asyncInflater.inflate(layoutFor(viewType), parent, (view, resid, container) -> {
+                    inFlight.put(viewType, inFlight.get(viewType, 0) - 1);
+                    queueFor(viewType).add(view);
+                });
+            }
+            if (missing > 0) {
+                Log.d(TAG, "Pre-inflando " + missing + " filas de tipo " + viewType);
+            }
+        }
+    }
+
+    /**
+     * Devuelve una vista pre-inflada del tipo pedido, o null si no hay ninguna lista.
+     */
+    View takePreinflated(int viewType) {
+        View view = queueFor(viewType).poll();
+        if (view != null) {
+            createdFromWarmUp++;
+        } else {
+            createdOnDemand++;
+        }
+        return view;
+    }
+
+    void onHolderReused() {
+        reused++;
+    }
+
+    public void logStats() {
+        Log.d(TAG, "Holders creados: " + (createdOnDemand + createdFromWarmUp)
+                + " (al vuelo: " + createdOnDemand + ", pre-inflados: " + createdFromWarmUp + ")"
+                + ", reutilizados: " + reused);
+    }
+
+    private ArrayDeque<View> queueFor(int viewType) {
+        ArrayDeque<View> queue = preinflated.get(viewType);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            preinflated.put(viewType, queue);
+        }
+        return queue;
+    }
+}
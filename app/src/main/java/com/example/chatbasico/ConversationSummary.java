@@ -0,0 +1,78 @@
+package com.example.chatbasico;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.Objects;
+
+/**
+ * Resumen de una conversación en la bandeja de un usuario: users/{uid}/inbox/{conversationId}.
+ * Lo mantiene la Cloud Function updateConversationSummaries cada vez que se crea un mensaje;
+ * el cliente solo pone los no leídos en 0 al abrir la conversación.
+ * unreadCount y messageCount son totales en caché de contadores repartidos en shards.
+ */
+public class ConversationSummary {
+
+    // Nombres de campo en Firestore
+    public static final String FIELD_CONVERSATION_ID = "conversationId";
+    public static final String FIELD_OTHER_USER_ID = "otherUserId";
+    public static final String FIELD_OTHER_USER_NAME = "otherUserName";
+    public static final String FIELD_LAST_MESSAGE_TEXT = "lastMessageText";
+    public static final String FIELD_LAST_SENDER_ID = "lastSenderId";
+    public static final String FIELD_LAST_MESSAGE_AT = "lastMessageAt";
+    public static final String FIELD_UNREAD_COUNT = "unreadCount";
+
+    public static final String FIELD_MESSAGE_COUNT = "messageCount";
+    // Hora de lectura de los shards del total en caché; la Cloud Function no lo pisa con una lectura anterior
+    public static final String FIELD_COUNTS_READ_AT = "countsReadAt";
+
+    public static final String INBOX_COLLECTION = "inbox";
+
+    // Contador de no leídos repartido en shards: inbox/{conversationId}/counters/unread/shards/{0..n-1}
+    // Mantener igual que UNREAD_SHARDS en la Cloud Function
+    public static final int UNREAD_SHARDS = 4;
+    public static final String COUNTERS_COLLECTION = "counters";
+    public static final String UNREAD_COUNTER = "unread";
+    public static final String SHARDS_COLLECTION = "shards";
+    public static final String FIELD_SHARD_COUNT = "count";
+
+    public final String conversationId;
+    public final String otherUserId;
+    public final String otherUserName;
+    public final String lastMessageText;
+    public final String lastSenderId;
+    public final Timestamp lastMessageAt;
+    public final long unreadCount;
+
+    public ConversationSummary(String conversationId, String otherUserId, String otherUserName,
+                               String lastMessageText, String lastSenderId, Timestamp lastMessageAt,
+                               long unreadCount) {
+        this.conversationId = conversationId;
+        this.otherUserId = otherUserId;
+        this.otherUserName = otherUserName;
+        this.lastMessageText = lastMessageText;
+        this.lastSenderId = lastSenderId;
+        this.lastMessageAt = lastMessageAt;
+        this.unreadCount = unreadCount;
+    }
+
+    public static ConversationSummary fromDocument(DocumentSnapshot document) {
+        Long unread = document.getLong(FIELD_UNREAD_COUNT);
+        return new ConversationSummary(
+                document.getId(),
+                document.getString(FIELD_OTHER_USER_ID),
+                document.getString(FIELD_OTHER_USER_NAME),
+                document.getString(FIELD_LAST_MESSAGE_TEXT),
+                document.getString(FIELD_LAST_SENDER_ID),
+                document.getTimestamp(FIELD_LAST_MESSAGE_AT),
+                unread != null ? unread : 0);
+    }
+
+    boolean sameContentAs(ConversationSummary other) {
+        return Objects.equals(otherUserName, other.otherUserName)
+                && Objects.equals(lastMessageText, other.lastMessageText)
+                && Objects.equals(lastSenderId, other.lastSenderId)
+                && Objects.equals(lastMessageAt, other.lastMessageAt)
+                && unreadCount == other.unreadCount;
+    }
+}
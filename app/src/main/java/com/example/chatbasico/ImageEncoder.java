@@ -0,0 +1,175 @@
+package com.example.chatbasico;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Prepara una imagen de la galería para subirla: decodifica con muestreo, aplica la orientación EXIF,
+ * la reduce a un lado máximo y la vuelve a codificar (WebP en Android 11+, JPEG antes).
+ * Es bloqueante: llamarla fuera del hilo principal.
+ */
+public class ImageEncoder {
+
+    private static final String TAG = "ImageEncoder";
+
+    public static final int DEFAULT_MAX_EDGE = 1600;
+    public static final int DEFAULT_QUALITY = 80;
+
+    /**
+     * Resultado listo para subir, con el tamaño final que se guarda en el mensaje.
+     */
+    public static class EncodedImage {
+        public final byte[] bytes;
+        public final int width;
+        public final int height;
+        public final String mimeType;
+        public final String extension;
+
+        EncodedImage(byte[] bytes, int width, int height, String mimeType, String extension) {
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+    private final int maxEdge;
+    private final int quality;
+
+    public ImageEncoder(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_MAX_EDGE, DEFAULT_QUALITY);
+    }
+
+    public ImageEncoder(ContentResolver contentResolver, int maxEdge, int quality) {
+        this.contentResolver = contentResolver;
+        this.maxEdge = maxEdge;
+        this.quality = quality;
+    }
+
+    public EncodedImage encode(Uri imageUri) throws IOException {
+        // 1. Solo las dimensiones, sin reservar memoria para los píxeles
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream input = open(imageUri)) {
+            BitmapFactory.decodeStream(input, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("No se pudo leer la imagen: " + imageUri);
+        }
+
+        // 2. Decodificar ya muestreada (potencia de 2) sin bajar del lado máximo pedido
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(bounds.outWidth, bounds.outHeight);
+        Bitmap decoded;
+        try (InputStream input = open(imageUri)) {
+            decoded = BitmapFactory.decodeStream(input, null, options);
+        }
+        if (decoded == null) {
+            throw new IOException("No se pudo decodificar la imagen: " + imageUri);
+        }
+
+        // 3 y 4. Orientación EXIF y reducción al lado máximo en una sola transformación
+        Matrix matrix = orientationMatrix(imageUri);
+        float scale = Math.min(1f, (float) maxEdge / Math.max(decoded.getWidth(), decoded.getHeight()));
+        matrix.postScale(scale, scale);
+        Bitmap output = decoded;
+        if (!matrix.isIdentity()) {
+            output = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+            if (output != decoded) {
+                decoded.recycle();
+            }
+        }
+
+        // 5. Volver a codificar con la calidad pedida
+        Bitmap.CompressFormat format;
+        String mimeType;
+        String extension;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            format = Bitmap.CompressFormat.WEBP_LOSSY;
+            mimeType = "image/webp";
+            extension = ".webp";
+        } else {
+            format = Bitmap.CompressFormat.JPEG;
+            mimeType = "image/jpeg";
+            extension = ".jpg";
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        output.compress(format, quality, buffer);
+        EncodedImage result = new EncodedImage(buffer.toByteArray(), output.getWidth(), output.getHeight(),
+                mimeType, extension);
+        output.recycle();
+
+        Log.d(TAG, "Imagen " + bounds.outWidth + "x" + bounds.outHeight + " → "
+                + result.width + "x" + result.height + " (" + result.bytes.length + " bytes, " + mimeType + ")");
+        return result;
+    }
+
+    private InputStream open(Uri imageUri) throws IOException {
+        InputStream input = contentResolver.openInputStream(imageUri);
+        if (input == null) {
+            throw new IOException("No se pudo abrir la imagen: " + imageUri);
+        }
+        return input;
+    }
+
+    private int sampleSizeFor(int width, int height) {
+        int sampleSize = 1;
+        int longestEdge = Math.max(width, height);
+        while (longestEdge / (sampleSize * 2) >= maxEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // Sin EXIF (o si no se puede leer) la imagen queda como está
+    private Matrix orientationMatrix(Uri imageUri) {
+        Matrix matrix = new Matrix();
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        try (InputStream input = open(imageUri)) {
+            orientation = new ExifInterface(input)
+                    .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "No se pudo leer la orientación EXIF", e);
+        }
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cola persistente de envíos de imágenes.
+ * Cada imagen ya codificada se copia a almacenamiento interno y se registra con los datos del mensaje;
+ * {@link ImageUploadWorker} la sube con WorkManager, así el envío sobrevive a cerrar la pantalla o al proceso.
+ * El ID del mensaje se genera al encolar: es el ID del documento en Firestore y su tag en WorkManager.
+ * Para limitar las subidas simultáneas sin bloquear hilos de WorkManager, cada envío se agrega al final de
+ * una de {@link #UPLOAD_SLOTS} cadenas únicas (APPEND_OR_REPLACE), repartidas por turno: cada cadena sube
+ * de a una imagen y las demás siguen en paralelo.
+ */
+public class ImageUploadQueue {
+
+    private static final String TAG = "ImageUploadQueue";
+    private static final String PREFS_NAME = "image_upload_queue";
+    private static final String UPLOADS_DIR = "pending_uploads";
+
+    // Tags de WorkManager: todos los envíos, por conversación y por mensaje
+    public static final String TAG_UPLOAD = "image_upload";
+    private static final String TAG_CONVERSATION_PREFIX = "image_upload_conversation:";
+    private static final String TAG_MESSAGE_PREFIX = "image_upload_message:";
+
+    // Subidas simultáneas como máximo: una por cadena
+    static final int UPLOAD_SLOTS = 3;
+    private static final String SLOT_WORK_PREFIX = "image_upload_slot:";
+    private static final String KEY_NEXT_SLOT = "__next_slot";
+
+    private static final long BACKOFF_SECONDS = 10;
+
+    /**
+     * Un envío pendiente. Se guarda como JSON en SharedPreferences con el ID del mensaje como clave.
+     */
+    public static class PendingUpload {
+        public String messageId;
+        public String conversationId;
+        public String senderId;
+        public String senderName;
+        public String receiverId;
+        public String receiverName;
+        public String filePath;
+        public String mimeType;
+        public String imageName;
+        public int width;
+        public int height;
+        public long size;
+        public long createdAt;
+        // Sesión de subida reanudable de Storage, si ya se abrió una
+        public String sessionUri;
+
+        public Message toMessage() {
+            Message message = new Message(senderId, senderName, receiverId, receiverName, conversationId,
+                    null, imageName);
+            message.setId(messageId);
+            message.setTimestamp(new Date(createdAt));
+            message.setImageWidth(width);
+            message.setImageHeight(height);
+            message.setImageSize(size);
+            return message;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("messageId", messageId);
+            json.put("conversationId", conversationId);
+            json.put("senderId", senderId);
+            json.put("senderName", senderName);
+            json.put("receiverId", receiverId);
+            json.put("receiverName", receiverName);
+            json.put("filePath", filePath);
+            json.put("mimeType", mimeType);
+            json.put("imageName", imageName);
+            json.put("width", width);
+            json.put("height", height);
+            json.put("size", size);
+            json.put("createdAt", createdAt);
+            json.put("sessionUri", sessionUri);
+            return json;
+        }
+
+        static PendingUpload fromJson(JSONObject json) {
+            PendingUpload upload = new PendingUpload();
+            upload.messageId = json.optString("messageId");
+            upload.conversationId = json.optString("conversationId");
+            upload.senderId = json.optString("senderId");
+            upload.senderName = json.optString("senderName");
+            upload.receiverId = json.optString("receiverId");
+            upload.receiverName = json.optString("receiverName");
+            upload.filePath = json.optString("filePath");
+            upload.mimeType = json.optString("mimeType");
+            upload.imageName = json.optString("imageName");
+            upload.width = json.optInt("width");
+            upload.height = json.optInt("height");
+            upload.size = json.optLong("size");
+            upload.createdAt = json.optLong("createdAt");
+            upload.sessionUri = json.isNull("sessionUri") ? null : json.optString("sessionUri", null);
+            return upload;
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    public ImageUploadQueue(Context context) {
+        this.context = context.getApplicationContext();
+        this.prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static String tagForConversation(String conversationId) {
+        return TAG_CONVERSATION_PREFIX + conversationId;
+    }
+
+    // Devuelve el ID del mensaje a partir de los tags de un WorkInfo (null si no es un envío)
+    public static String messageIdFromTags(Iterable<String> tags) {
+        for (String tag : tags) {
+            if (tag.startsWith(TAG_MESSAGE_PREFIX)) {
+                return tag.substring(TAG_MESSAGE_PREFIX.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Guarda la imagen codificada y encola su envío. Hace E/S de disco: llamarlo fuera del hilo principal.
+     */
+    public PendingUpload enqueue(String messageId, String conversationId, String senderId, String senderName,
+                                 String receiverId, String receiverName,
+                                 ImageEncoder.EncodedImage encoded) throws IOException {
+        File dir = new File(context.getFilesDir(), UPLOADS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("No se pudo crear " + dir);
+        }
+        File file = new File(dir, messageId + encoded.extension);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(encoded.bytes);
+        }
+
+        PendingUpload upload = new PendingUpload();
+        upload.messageId = messageId;
+        upload.conversationId = conversationId;
+        upload.senderId = senderId;
+        upload.senderName = senderName;
+        upload.receiverId = receiverId;
+        upload.receiverName = receiverName;
+        upload.filePath = file.getAbsolutePath();
+        upload.mimeType = encoded.mimeType;
+        upload.imageName = messageId + encoded.extension;
+        upload.width = encoded.width;
+        upload.height = encoded.height;
+        upload.size = encoded.bytes.length;
+        upload.createdAt = System.currentTimeMillis();
+        save(upload);
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ImageUploadWorker.class)
+                .setInputData(new Data.Builder()
+                        .putString(ImageUploadWorker.KEY_MESSAGE_ID, messageId)
+                        .build())
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                .addTag(TAG_UPLOAD)
+                .addTag(tagForConversation(conversationId))
+                .addTag(TAG_MESSAGE_PREFIX + messageId)
+                .build();
+        String slotWork = SLOT_WORK_PREFIX + nextSlot();
+        WorkManager.getInstance(context).enqueueUniqueWork(slotWork, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+
+        Log.d(TAG, "Imagen encolada para envío: " + messageId + " (" + slotWork + ")");
+        return upload;
+    }
+
+    // Reparte los envíos entre las cadenas por turno
+    private synchronized int nextSlot() {
+        int slot = prefs.getInt(KEY_NEXT_SLOT, 0);
+        prefs.edit().putInt(KEY_NEXT_SLOT, (slot + 1) % UPLOAD_SLOTS).apply();
+        return slot;
+    }
+
+    public PendingUpload get(String messageId) {
+        String json = prefs.getString(messageId, null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return PendingUpload.fromJson(new JSONObject(json));
+        } catch (JSONException e) {
+            Log.e(TAG, "Registro de envío inválido: " + messageId, e);
+            return null;
+        }
+    }
+
+    public void save(PendingUpload upload) {
+        try {
+            prefs.edit().putString(upload.messageId, upload.toJson().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "No se pudo guardar el envío: " + upload.messageId, e);
+        }
+    }
+
+    // Borra el registro y el archivo local (envío terminado o abandonado)
+    public void remove(PendingUpload upload) {
+        prefs.edit().remove(upload.messageId).apply();
+        File file = new File(upload.filePath);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "No se pudo borrar " + file);
+        }
+    }
+
+    public static Uri fileUri(PendingUpload upload) {
+        return Uri.fromFile(new File(upload.filePath));
+    }
+}
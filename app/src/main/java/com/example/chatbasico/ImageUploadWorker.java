@@ -0,0 +1,187 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Sube una imagen de {@link ImageUploadQueue} y crea su mensaje en Firestore.
+ * - La subida usa una sesión reanudable de Storage: si se corta, el reintento sigue desde donde quedó.
+ * - El límite de subidas simultáneas lo pone WorkManager: {@link ImageUploadQueue} encola cada envío al
+ *   final de una de {@link ImageUploadQueue#UPLOAD_SLOTS} cadenas, que corren una subida a la vez.
+ *   Por eso el worker no devuelve failure (cortaría la cadena): un envío abandonado termina en success
+ *   con {@link #KEY_ABANDONED} en los datos de salida.
+ * - Ante un error se reintenta con el backoff exponencial del request, hasta {@link #MAX_ATTEMPTS} intentos.
+ * - El progreso se publica con setProgressAsync (como mucho cada {@link #PROGRESS_INTERVAL_MS} ms).
+ * El mensaje se escribe con el ID generado al encolar, así un reintento no lo duplica; y su timestamp
+ * del servidor se escribe una sola vez, para que un reintento no lo mueva de lugar en la conversación.
+ */
+public class ImageUploadWorker extends Worker {
+
+    private static final String TAG = "ImageUploadWorker";
+
+    public static final String KEY_MESSAGE_ID = "message_id";
+    public static final String KEY_PROGRESS = "progress";
+    public static final String KEY_ABANDONED = "abandoned";
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    // Los listeners de progreso no necesitan el hilo principal
+    private static final Executor listenerExecutor = Executors.newSingleThreadExecutor();
+
+    private long lastProgressAt;
+    private int lastProgress = -1;
+
+    public ImageUploadWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        ImageUploadQueue queue = new ImageUploadQueue(getApplicationContext());
+        String messageId = getInputData().getString(KEY_MESSAGE_ID);
+        ImageUploadQueue.PendingUpload upload = messageId != null ? queue.get(messageId) : null;
+        if (upload == null) {
+            Log.w(TAG, "Envío sin registro, se descarta: " + messageId);
+            return abandoned();
+        }
+
+        try {
+            publishProgress(0, true);
+            String downloadUrl = upload(queue, upload);
+            publishProgress(100, true);
+
+            Message message = upload.toMessage();
+            message.setImageUrl(downloadUrl);
+            // El timestamp lo pone el servidor, no la hora en que se encoló
+            message.setTimestamp(null);
+            writeMessage(upload, MessageCodec.encode(message));
+
+            Log.d(TAG, "Imagen enviada con ID: " + upload.messageId);
+            queue.remove(upload);
+            return Result.success();
+        } catch (Exception e) {
+            if (isStopped()) {
+                return Result.retry();
+            }
+            if (getRunAttemptCount() + 1 >= MAX_ATTEMPTS) {
+                Log.e(TAG, "Se abandona el envío tras " + MAX_ATTEMPTS + " intentos: " + upload.messageId, e);
+                queue.remove(upload);
+                return abandoned();
+            }
+            Log.w(TAG, "Error al enviar imagen, se reintentará: " + upload.messageId, e);
+            return Result.retry();
+        }
+    }
+
+    // El envío no se hizo, pero la cadena del slot sigue con el próximo
+    private static Result abandoned() {
+        return Result.success(new Data.Builder().putBoolean(KEY_ABANDONED, true).build());
+    }
+
+    private void writeMessage(ImageUploadQueue.PendingUpload upload, Map<String, Object> messageMap) throws Exception {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        DocumentReference messageRef = db.collection("conversations")
+                .document(upload.conversationId)
+                .collection("messages")
+                .document(upload.messageId);
+
+        if (getRunAttemptCount() == 0) {
+            Tasks.await(messageRef.set(messageMap));
+            return;
+        }
+
+        // Un intento anterior pudo haber escrito el mensaje antes de fallar: si ya tiene timestamp
+        // se actualizan los demás campos sin tocarlo
+        Map<String, Object> withoutTimestamp = new HashMap<>(messageMap);
+        withoutTimestamp.remove(MessageCodec.FIELD_TIMESTAMP);
+        Tasks.await(db.runTransaction(transaction -> {
+            DocumentSnapshot existing = transaction.get(messageRef);
+            if (existing.exists() && existing.get(MessageCodec.FIELD_TIMESTAMP) != null) {
+                transaction.set(messageRef, withoutTimestamp, SetOptions.merge());
+            } else {
+                transaction.set(messageRef, messageMap);
+            }
+            return null;
+        }));
+    }
+
+    private String upload(ImageUploadQueue queue, ImageUploadQueue.PendingUpload upload) throws Exception {
+        StorageReference imageRef = FirebaseStorage.getInstance().getReference()
+                .child("chat_images/" + upload.conversationId + "/" + upload.imageName);
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(upload.mimeType)
+                .build();
+        Uri fileUri = ImageUploadQueue.fileUri(upload);
+
+        // Reanudar la sesión anterior si la hay
+        UploadTask task = upload.sessionUri != null
+                ? imageRef.putFile(fileUri, metadata, Uri.parse(upload.sessionUri))
+                : imageRef.putFile(fileUri, metadata);
+
+        task.addOnProgressListener(listenerExecutor, snapshot -> {
+            Uri sessionUri = snapshot.getUploadSessionUri();
+            if (sessionUri != null && !sessionUri.toString().equals(upload.sessionUri)) {
+                upload.sessionUri = sessionUri.toString();
+                queue.save(upload);
+            }
+            long total = snapshot.getTotalByteCount();
+            if (total > 0) {
+                publishProgress((int) (snapshot.getBytesTransferred() * 100 / total), false);
+            }
+        });
+
+        try {
+            Tasks.await(task);
+        } catch (Exception e) {
+            if (isStopped()) {
+                task.cancel();
+            }
+            // Un 4xx con sesión (vencida o inválida): el próximo intento empieza una sesión nueva
+            if (upload.sessionUri != null && e.getCause() instanceof StorageException) {
+                int httpCode = ((StorageException) e.getCause()).getHttpResultCode();
+                if (httpCode >= 400 && httpCode < 500) {
+                    upload.sessionUri = null;
+                    queue.save(upload);
+                }
+            }
+            throw e;
+        }
+        return Tasks.await(imageRef.getDownloadUrl()).toString();
+    }
+
+    // Limita las actualizaciones para no despertar a la UI por cada bloque subido
+    private synchronized void publishProgress(int progress, boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        if (!force && (progress == lastProgress || now - lastProgressAt < PROGRESS_INTERVAL_MS)) {
+            return;
+        }
+        lastProgress = progress;
+        lastProgressAt = now;
+        setProgressAsync(new Data.Builder().putInt(KEY_PROGRESS, progress).build());
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.chatbasico;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Bandeja de conversaciones de MainChats: una fila por conversación, la más reciente arriba.
+ */
+public class InboxAdapter extends ListAdapter<ConversationSummary, InboxAdapter.ConversationViewHolder> {
+
+    public interface OnConversationClickListener {
+        void onConversationClick(ConversationSummary summary);
+    }
+
+    private static final DiffUtil.ItemCallback<ConversationSummary> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<ConversationSummary>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull ConversationSummary oldItem, @NonNull ConversationSummary newItem) {
+                    return Objects.equals(oldItem.conversationId, newItem.conversationId);
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull ConversationSummary oldItem, @NonNull ConversationSummary newItem) {
+                    return oldItem.sameContentAs(newItem);
+                }
+            };
+
+    private final String currentUserId;
+    private final OnConversationClickListener listener;
+    private final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm", Locale.getDefault());
+    private final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("dd/MM", Locale.getDefault());
+    private final ZoneId zoneId = ZoneId.systemDefault();
+
+    public InboxAdapter(String currentUserId, OnConversationClickListener listener) {
+        super(DIFF_CALLBACK);
+        this.currentUserId = currentUserId;
+        this.listener = listener;
+    }
+
+    @NonNull
+    @Override
+    public ConversationViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_conversation, parent, false);
+        return new ConversationViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ConversationViewHolder holder, int position) {
+        holder.bind(getItem(position));
+    }
+
+    // Hora si el mensaje es de hoy, fecha si es anterior
+    private String formatTime(ConversationSummary summary) {
+        if (summary.lastMessageAt == null) {
+            return "";
+        }
+        ZonedDateTime time = Instant.ofEpochMilli(summary.lastMessageAt.toDate().getTime()).atZone(zoneId);
+        return time.toLocalDate().equals(LocalDate.now(zoneId))
+                ? timeFormatter.format(time)
+                : dateFormatter.format(time);
+    }
+
+    class ConversationViewHolder extends RecyclerView.ViewHolder {
+        TextView textNombre;
+        TextView textLastMessage;
+        TextView textTime;
+        TextView textUnread;
+
+        ConversationViewHolder(@NonNull View itemView) {
+            super(itemView);
+            textNombre = itemView.findViewById(R.id.textNombre);
+            textLastMessage = itemView.findViewById(R.id.textLastMessage);
+            textTime = itemView.findViewById(R.id.textTime);
+            textUnread = itemView.findViewById(R.id.textUnread);
+        }
+
+        void bind(ConversationSummary summary) {
+            textNombre.setText(summary.otherUserName);
+
+            String preview = summary.lastMessageText != null ? summary.lastMessageText : "";
+            if (currentUserId != null && currentUserId.equals(summary.lastSenderId)) {
+                preview = "Tú: " + preview;
+            }
+            textLastMessage.setText(preview);
+            textTime.setText(formatTime(summary));
+
+            if (summary.unreadCount > 0) {
+                textUnread.setVisibility(View.VISIBLE);
+                textUnread.setText(summary.unreadCount > 99 ? "99+" : String.valueOf(summary.unreadCount));
+            } else {
+                textUnread.setVisibility(View.GONE);
+            }
+
+            itemView.setOnClickListener(v -> {
+                if (listener != null) {
+                    listener.onConversationClick(summary);
+                }
+            });
+        }
+    }
+}
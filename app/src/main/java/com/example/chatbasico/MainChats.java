@@ -2,14 +2,21 @@ package com.example.chatbasico;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ImageView;
 
 import androidx.activity.EdgeToEdge;
+import androidx.activity.OnBackPressedCallback;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
@@ -19,20 +26,35 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
-public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserClickListener {
+public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserClickListener,
+        InboxAdapter.OnConversationClickListener {
 
     private static final String TAG = "MainChats";
 
+    // Conversaciones que se muestran en la bandeja (las más recientes)
+    private static final int INBOX_LIMIT = 50;
+
     // Variables de la interfaz
     private TextView textUsername;
     private ImageView imageSignOut;
+    private ImageView imageNewChat;
+    private TextView textListTitle;
+    private TextView textEmptyInbox;
+    private EditText editSearchUsers;
     private RecyclerView conversationRecyclerView;
     private ProgressBar progressBar;
 
@@ -41,9 +63,36 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
     private FirebaseFirestore database;
     private String nombreUsuario;
 
-    // Lista de usuarios y adapter
+    // Lista de usuarios y adapter (directorio para empezar un chat nuevo)
     private List<Usuario> usuarios;
     private UsersAdapter usersAdapter;
+    private UserDirectory userDirectory;
+    private UserCache userCache;
+    private String directoryQuery = "";
+    // Si la búsqueda actual ya consultó al servidor o solo mostró la caché
+    private boolean directoryNetworkStarted = false;
+    // Usuarios de la caché que se muestran al abrir el directorio sin consultar la red
+    private static final int CACHED_DIRECTORY_LIMIT = 200;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::loadUsers;
+    private static final long SEARCH_DEBOUNCE_MS = 300;
+    // Filas antes del final en que se pide la siguiente página del directorio
+    private static final int DIRECTORY_PREFETCH_ROWS = 5;
+    // Espera máxima para quitar el token antes de cerrar sesión
+    private static final long SIGN_OUT_TIMEOUT_MS = 5000;
+    private final Handler signOutHandler = new Handler(Looper.getMainLooper());
+
+    // Bandeja de conversaciones: users/{uid}/inbox, mantenida por la Cloud Function
+    private InboxAdapter inboxAdapter;
+    private ListenerRegistration inboxListener;
+    private boolean inboxLoaded = false;
+    private boolean showingDirectory = false;
+    private final OnBackPressedCallback closeDirectoryCallback = new OnBackPressedCallback(false) {
+        @Override
+        public void handleOnBackPressed() {
+            showInbox();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,17 +118,78 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
         loadUserDetails();
         getToken();
         setListeners();
-        loadUsers();
+        userCache = UserCache.getInstance(this);
+        if (mAuth.getCurrentUser() != null) {
+            PresenceManager.getInstance().start(mAuth.getCurrentUser().getUid());
+        }
+        setupUserDirectory();
+        ensureSearchFields();
+        syncUserCache();
+        openChatFromNotification(intent);
 
         Log.d(TAG, "✅ MainChats iniciado - Firebase Functions manejará las notificaciones automáticamente");
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        listenToInbox();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Sin pantalla visible no hace falta seguir recibiendo cambios de la bandeja
+        if (inboxListener != null) {
+            inboxListener.remove();
+            inboxListener = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        searchHandler.removeCallbacks(searchRunnable);
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        openChatFromNotification(intent);
+    }
+
+    // Si se abrió desde una notificación, ir directo al mensaje notificado
+    private void openChatFromNotification(Intent intent) {
+        String senderId = intent.getStringExtra("senderId");
+        String messageId = intent.getStringExtra("messageId");
+        if (senderId == null || messageId == null) {
+            return;
+        }
+
+        Log.d(TAG, "Abriendo chat desde notificación: " + senderId + " / " + messageId);
+
+        Intent chatIntent = new Intent(this, chats.class);
+        chatIntent.putExtra("usuario_seleccionado", intent.getStringExtra("senderName"));
+        chatIntent.putExtra("usuario_id", senderId);
+        chatIntent.putExtra("current_user_name", nombreUsuario);
+        chatIntent.putExtra("anchor_message_id", messageId);
+        startActivity(chatIntent);
+
+        // Evitar reabrir el chat al recrear la actividad
+        intent.removeExtra("messageId");
+    }
+
     private void init() {
         Log.d(TAG, "=== Inicializando componentes ===");
 
         // Inicializar vistas
         textUsername = findViewById(R.id.textUsername);
         imageSignOut = findViewById(R.id.imageSignOut);
+        imageNewChat = findViewById(R.id.imageNewChat);
+        textListTitle = findViewById(R.id.textListTitle);
+        textEmptyInbox = findViewById(R.id.textEmptyInbox);
+        editSearchUsers = findViewById(R.id.editSearchUsers);
         conversationRecyclerView = findViewById(R.id.conversationRecyclerView);
         progressBar = findViewById(R.id.progressBar);
 
@@ -94,13 +204,16 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
         Log.d(TAG, "Lista de usuarios inicializada");
 
         // Inicializar adapter
-        usersAdapter = new UsersAdapter(usuarios, this);
+        usersAdapter = new UsersAdapter(this);
         Log.d(TAG, "Adapter inicializado: " + (usersAdapter != null ? "OK" : "NULL"));
 
-        // Configurar RecyclerView
+        String currentUserId = mAuth.getCurrentUser() != null ? mAuth.getCurrentUser().getUid() : null;
+        inboxAdapter = new InboxAdapter(currentUserId, this);
+
+        // Configurar RecyclerView: empieza mostrando la bandeja
         if (conversationRecyclerView != null) {
             conversationRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-            conversationRecyclerView.setAdapter(usersAdapter);
+            conversationRecyclerView.setAdapter(inboxAdapter);
             Log.d(TAG, "RecyclerView configurado con adapter");
         } else {
             Log.e(TAG, "ERROR: conversationRecyclerView es null!");
@@ -113,114 +226,299 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
         if (imageSignOut != null) {
             imageSignOut.setOnClickListener(v -> signOut());
         }
+        if (imageNewChat != null) {
+            imageNewChat.setOnClickListener(v -> showDirectory());
+        }
+        getOnBackPressedDispatcher().addCallback(this, closeDirectoryCallback);
     }
 
-    private void loadUserDetails() {
-        if (textUsername != null && nombreUsuario != null) {
-            textUsername.setText(nombreUsuario);
+    /**
+     * Escucha la bandeja del usuario: una consulta ordenada por último mensaje y limitada,
+     * en vez de leer toda la colección users. Los resúmenes los escribe la Cloud Function
+     * updateConversationSummaries al crearse cada mensaje.
+     */
+    private void listenToInbox() {
+        if (mAuth.getCurrentUser() == null) {
+            Log.e(TAG, "ERROR: Usuario no autenticado");
+            return;
+        }
+        if (inboxListener != null) {
+            return;
+        }
+
+        if (!inboxLoaded && progressBar != null) {
+            progressBar.setVisibility(View.VISIBLE);
         }
+
+        String currentUserId = mAuth.getCurrentUser().getUid();
+        inboxListener = database.collection("users")
+                .document(currentUserId)
+                .collection(ConversationSummary.INBOX_COLLECTION)
+                .orderBy(ConversationSummary.FIELD_LAST_MESSAGE_AT, Query.Direction.DESCENDING)
+                .limit(INBOX_LIMIT)
+                .addSnapshotListener((snapshots, error) -> {
+                    if (error != null) {
+                        Log.e(TAG, "Error escuchando la bandeja", error);
+                        if (progressBar != null) {
+                            progressBar.setVisibility(View.GONE);
+                        }
+                        return;
+                    }
+                    if (snapshots == null) {
+                        return;
+                    }
+
+                    List<ConversationSummary> summaries = new ArrayList<>();
+                    for (QueryDocumentSnapshot document : snapshots) {
+                        summaries.add(ConversationSummary.fromDocument(document));
+                    }
+                    Log.d(TAG, "Bandeja actualizada: " + summaries.size() + " conversaciones"
+                            + (snapshots.getMetadata().isFromCache() ? " (caché)" : ""));
+
+                    inboxLoaded = true;
+                    inboxAdapter.submitList(summaries);
+                    if (!showingDirectory) {
+                        updateInboxViews();
+                    }
+                });
     }
 
-    private void loadUsers() {
-        Log.d(TAG, "=== Iniciando carga de usuarios ===");
+    private void updateInboxViews() {
+        if (progressBar != null && inboxLoaded) {
+            progressBar.setVisibility(View.GONE);
+        }
+        boolean empty = inboxLoaded && inboxAdapter.getItemCount() == 0;
+        if (conversationRecyclerView != null) {
+            conversationRecyclerView.setVisibility(inboxLoaded && !empty ? View.VISIBLE : View.GONE);
+        }
+        if (textEmptyInbox != null) {
+            textEmptyInbox.setVisibility(empty ? View.VISIBLE : View.GONE);
+        }
+    }
 
-        if (progressBar != null) {
-            progressBar.setVisibility(View.VISIBLE);
+    // Cambia la lista a la bandeja de conversaciones
+    private void showInbox() {
+        showingDirectory = false;
+        closeDirectoryCallback.setEnabled(false);
+        searchHandler.removeCallbacks(searchRunnable);
+        if (textListTitle != null) {
+            textListTitle.setText("Conversaciones");
+        }
+        if (editSearchUsers != null) {
+            editSearchUsers.setVisibility(View.GONE);
+        }
+        if (textEmptyInbox != null) {
+            textEmptyInbox.setText("Todavía no tienes conversaciones. Toca el botón de mensaje para empezar una.");
         }
         if (conversationRecyclerView != null) {
-            conversationRecyclerView.setVisibility(View.GONE);
+            conversationRecyclerView.setAdapter(inboxAdapter);
         }
+        updateInboxViews();
+    }
 
-        // Verificar autenticación
-        if (mAuth.getCurrentUser() == null) {
+    // Cambia la lista al directorio de usuarios, para empezar un chat nuevo
+    private void showDirectory() {
+        if (showingDirectory) {
+            return;
+        }
+        showingDirectory = true;
+        closeDirectoryCallback.setEnabled(true);
+        if (textListTitle != null) {
+            textListTitle.setText("Usuarios disponibles");
+        }
+        if (textEmptyInbox != null) {
+            textEmptyInbox.setVisibility(View.GONE);
+        }
+        if (editSearchUsers != null) {
+            editSearchUsers.setVisibility(View.VISIBLE);
+        }
+        if (conversationRecyclerView != null) {
+            conversationRecyclerView.setAdapter(usersAdapter);
+        }
+        loadUsers();
+    }
+
+    private void loadUserDetails() {
+        if (textUsername != null && nombreUsuario != null) {
+            textUsername.setText(nombreUsuario);
+        }
+    }
+
+    /**
+     * Muestra el directorio para el texto actual del buscador.
+     * Primero se pinta lo que haya en la caché local; la red solo se consulta si hay texto,
+     * si la caché no llena una página, o al llegar al final de la lista.
+     */
+    private void loadUsers() {
+        if (userDirectory == null) {
             Log.e(TAG, "ERROR: Usuario no autenticado");
             showToast("Error: Usuario no autenticado");
-            if (progressBar != null) {
-                progressBar.setVisibility(View.GONE);
-            }
             return;
         }
 
-        String currentUserId = mAuth.getCurrentUser().getUid();
-        Log.d(TAG, "Usuario actual ID: " + currentUserId);
-        Log.d(TAG, "Consultando colección 'users' en Firestore...");
+        String query = editSearchUsers != null ? editSearchUsers.getText().toString() : "";
+        directoryQuery = query;
+        directoryNetworkStarted = false;
+        usuarios.clear();
 
-        // Cargar usuarios desde Firestore
-        database.collection("users")
-                .get()
-                .addOnCompleteListener(task -> {
-                    Log.d(TAG, "Consulta completada. Éxito: " + task.isSuccessful());
+        userCache.search(query, mAuth.getCurrentUser().getUid(), CACHED_DIRECTORY_LIMIT, cached -> {
+            // La búsqueda cambió o se volvió a la bandeja mientras se leía la caché
+            if (!showingDirectory || !query.equals(directoryQuery)) {
+                return;
+            }
+            Log.d(TAG, "Usuarios desde la caché: " + cached.size());
+            mergeUsuarios(cached, true);
 
-                    if (progressBar != null) {
-                        progressBar.setVisibility(View.GONE);
-                    }
+            if (!query.trim().isEmpty() || cached.size() < UserDirectory.PAGE_SIZE) {
+                startDirectoryNetwork();
+            } else {
+                showDirectoryViews();
+            }
+        });
+    }
 
-                    if (task.isSuccessful() && task.getResult() != null) {
-                        Log.d(TAG, "Documentos encontrados: " + task.getResult().size());
-
-                        usuarios.clear();
-                        int usuariosAgregados = 0;
-
-                        for (QueryDocumentSnapshot document : task.getResult()) {
-                            Log.d(TAG, "--- Procesando documento ---");
-                            Log.d(TAG, "ID del documento: " + document.getId());
-                            Log.d(TAG, "Datos: " + document.getData().toString());
-
-                            // No mostrar el usuario actual en la lista
-                            if (!document.getId().equals(currentUserId)) {
-                                Usuario usuario = new Usuario();
-                                usuario.id = document.getString("id");
-                                usuario.nombre = document.getString("nombre");
-                                usuario.email = document.getString("email");
-
-                                Log.d(TAG, "Usuario procesado - ID: " + usuario.id + ", Nombre: " + usuario.nombre);
-
-                                if (usuario.nombre != null && !usuario.nombre.isEmpty()) {
-                                    usuarios.add(usuario);
-                                    usuariosAgregados++;
-                                    Log.d(TAG, "Usuario agregado correctamente");
-                                } else {
-                                    Log.w(TAG, "Usuario con nombre vacío, no agregado");
-                                }
-                            } else {
-                                Log.d(TAG, "Usuario actual excluido de la lista");
-                            }
-                        }
+    private void startDirectoryNetwork() {
+        directoryNetworkStarted = true;
+        if (progressBar != null && usuarios.isEmpty()) {
+            progressBar.setVisibility(View.VISIBLE);
+        }
+        userDirectory.search(directoryQuery);
+    }
 
-                        Log.d(TAG, "Total usuarios en lista: " + usuarios.size());
-                        Log.d(TAG, "Usuarios agregados en esta carga: " + usuariosAgregados);
+    /**
+     * Agrega o reemplaza usuarios en la lista del directorio (por ID) y la mantiene ordenada por nombre.
+     * El adapter aplica solo las diferencias.
+     *
+     * @param addNew false para solo actualizar los que ya se muestran (cambios de la sincronización)
+     */
+    private void mergeUsuarios(List<Usuario> incoming, boolean addNew) {
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < usuarios.size(); i++) {
+            positions.put(usuarios.get(i).id, i);
+        }
+        for (Usuario usuario : incoming) {
+            Integer position = positions.get(usuario.id);
+            if (position != null) {
+                usuarios.set(position, usuario);
+            } else if (addNew) {
+                positions.put(usuario.id, usuarios.size());
+                usuarios.add(usuario);
+            }
+        }
+        usuarios.sort((a, b) -> UserDirectory.normalize(a.nombre).compareTo(UserDirectory.normalize(b.nombre)));
+        usersAdapter.submitList(new ArrayList<>(usuarios));
+    }
 
-                        if (usersAdapter != null) {
-                            usersAdapter.notifyDataSetChanged();
-                            Log.d(TAG, "Adapter notificado de cambios");
-                        } else {
-                            Log.e(TAG, "ERROR: Adapter es null");
-                        }
+    private void showDirectoryViews() {
+        if (progressBar != null) {
+            progressBar.setVisibility(View.GONE);
+        }
+        if (conversationRecyclerView != null) {
+            conversationRecyclerView.setVisibility(View.VISIBLE);
+        }
+        if (textEmptyInbox != null) {
+            textEmptyInbox.setText("No se encontraron usuarios");
+            textEmptyInbox.setVisibility(usuarios.isEmpty() ? View.VISIBLE : View.GONE);
+        }
+    }
 
-                        if (conversationRecyclerView != null) {
-                            conversationRecyclerView.setVisibility(View.VISIBLE);
-                            Log.d(TAG, "RecyclerView visible");
+    private void setupUserDirectory() {
+        if (mAuth.getCurrentUser() == null) {
+            return;
+        }
+        userDirectory = new UserDirectory(database.collection("users"), mAuth.getCurrentUser().getUid(), userCache,
+                new UserDirectory.Callback() {
+                    @Override
+                    public void onResults(List<Usuario> page, boolean reset, boolean hasMore) {
+                        // Si ya se volvió a la bandeja, no tocar sus vistas
+                        if (!showingDirectory) {
+                            return;
                         }
+                        // La lista ya se vació al empezar la búsqueda; cada página se une a lo que vino de la caché
+                        mergeUsuarios(page, true);
+                        Log.d(TAG, "Usuarios en lista: " + usuarios.size() + (hasMore ? " (hay más)" : ""));
+                        showDirectoryViews();
+                    }
 
-                        showToast("Usuarios cargados: " + usuarios.size());
-                    } else {
-                        // Error en la consulta
-                        String errorMsg = "Error desconocido";
-                        if (task.getException() != null) {
-                            errorMsg = task.getException().getMessage();
-                            Log.e(TAG, "Error en consulta Firestore: " + errorMsg);
-                            task.getException().printStackTrace();
+                    @Override
+                    public void onError(Exception e) {
+                        if (progressBar != null) {
+                            progressBar.setVisibility(View.GONE);
                         }
+                        showToast("Error al cargar usuarios: " + e.getMessage());
+                    }
+                });
 
-                        showToast("Error al cargar usuarios: " + errorMsg);
+        // Buscar mientras se escribe, esperando una pausa para no consultar por cada letra
+        if (editSearchUsers != null) {
+            editSearchUsers.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    searchHandler.removeCallbacks(searchRunnable);
+                    if (showingDirectory) {
+                        searchHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+                    }
+                }
+            });
+        }
 
-                        if (conversationRecyclerView != null) {
-                            conversationRecyclerView.setVisibility(View.VISIBLE);
+        // Pedir la siguiente página al acercarse al final de la lista
+        if (conversationRecyclerView != null) {
+            conversationRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                    if (!showingDirectory || dy <= 0) {
+                        return;
+                    }
+                    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                    if (layoutManager != null
+                            && layoutManager.findLastVisibleItemPosition() >= usuarios.size() - DIRECTORY_PREFETCH_ROWS) {
+                        if (directoryNetworkStarted) {
+                            userDirectory.loadMore();
+                        } else {
+                            // Se terminó lo guardado en la caché: seguir desde el servidor
+                            startDirectoryNetwork();
                         }
                     }
-                });
+                }
+            });
+        }
+    }
+
+    // Trae solo los usuarios guardados que cambiaron desde la última vez y actualiza los que se muestran
+    private void syncUserCache() {
+        userCache.sync(database.collection("users"), changed -> {
+            if (showingDirectory && !changed.isEmpty()) {
+                mergeUsuarios(changed, false);
+            }
+        });
+    }
 
-        Log.d(TAG, "=== Consulta Firestore iniciada ===");
+    // Usuarios registrados antes de la búsqueda no tienen los campos normalizados. Los completa en el servidor
+    // la Cloud Function backfillSearchFields; esto solo adelanta el propio usuario si todavía no pasó
+    private void ensureSearchFields() {
+        if (mAuth.getCurrentUser() == null) {
+            return;
+        }
+        DocumentReference userRef = database.collection("users").document(mAuth.getCurrentUser().getUid());
+        userRef.get().addOnSuccessListener(document -> {
+            if (!document.exists() || document.contains(UserDirectory.FIELD_NOMBRE_LOWER)) {
+                return;
+            }
+            Map<String, Object> fields = UserDirectory.searchFields(document.getString("nombre"), document.getString("email"));
+            fields.put(UserCache.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+            userRef.update(fields)
+                    .addOnSuccessListener(unused -> Log.d(TAG, "Campos de búsqueda agregados al usuario"))
+                    .addOnFailureListener(e -> Log.e(TAG, "Error agregando campos de búsqueda", e));
+        });
     }
 
 
@@ -228,67 +526,64 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
         Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
     }
 
+    // Token FCM de este dispositivo; TokenRegistrar solo escribe si cambió
     private void getToken() {
-        FirebaseMessaging.getInstance().getToken().addOnSuccessListener(this::updateToken);
+        FirebaseMessaging.getInstance().getToken()
+                .addOnSuccessListener(token -> TokenRegistrar.register(getApplicationContext(), token));
     }
 
-    private void updateToken(String token) {
-        if (mAuth.getCurrentUser() != null) {
-            String userId = mAuth.getCurrentUser().getUid();
-            DocumentReference documentReference = database.collection("users")
-                    .document(userId);
-
-            // Primero obtenemos el documento actual para verificar si ya tiene tokens guardados
-            documentReference.get()
-                    .addOnSuccessListener(documentSnapshot -> {
-                        List<String> fcmTokens = new ArrayList<>();
-
-                        // Si ya existe una lista de tokens, la recuperamos
-                        if (documentSnapshot.contains("fcmTokens")) {
-                            List<String> existingTokens = (List<String>) documentSnapshot.get("fcmTokens");
-                            if (existingTokens != null) {
-                                fcmTokens.addAll(existingTokens);
-                            }
-                        }
+    private void signOut() {
+        showToast("Cerrando sesión...");
 
-                        // Verificamos si el token ya existe en la lista para evitar duplicados
-                        if (!fcmTokens.contains(token)) {
-                            fcmTokens.add(token);
-
-                            // Actualizamos el documento con la lista actualizada
-                            documentReference.update("fcmTokens", fcmTokens)
-                                    .addOnSuccessListener(aVoid -> {
-                                        Log.d(TAG, "Token agregado a la lista de FCM tokens: " + token);
-                                    })
-                                    .addOnFailureListener(e -> {
-                                        Log.e(TAG, "Error al actualizar la lista de tokens", e);
-                                    });
-
-                            // También actualizamos el campo fcmToken individual por compatibilidad
-                            documentReference.update("fcmToken", token);
+        if (mAuth != null) {
+            PresenceManager.getInstance().stop();
+            // Este dispositivo deja de recibir notificaciones del usuario que sale. Hay que esperar la escritura:
+            // después de signOut quedaría pendiente hasta que el mismo usuario vuelva a entrar en este dispositivo
+            boolean[] done = {false};
+            Runnable finishSignOut = () -> {
+                if (done[0]) {
+                    return;
+                }
+                done[0] = true;
+                mAuth.signOut();
+                Intent intent = new Intent(getApplicationContext(), Inicio_seccion.class);
+                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+                startActivity(intent);
+                finish();
+            };
+            // Sin conexión (o si falla) se invalida el token en FCM: el servidor lo quita en el próximo envío fallido
+            Runnable fallback = () -> {
+                if (!done[0]) {
+                    Log.w(TAG, "No se pudo quitar el token del usuario, se invalida el token del dispositivo");
+                    FirebaseMessaging.getInstance().deleteToken();
+                    finishSignOut.run();
+                }
+            };
+            signOutHandler.postDelayed(fallback, SIGN_OUT_TIMEOUT_MS);
+            TokenRegistrar.unregister(getApplicationContext())
+                    .addOnCompleteListener(task -> {
+                        signOutHandler.removeCallbacks(fallback);
+                        if (task.isSuccessful()) {
+                            finishSignOut.run();
                         } else {
-                            Log.d(TAG, "Token ya existe en la lista de dispositivos de este usuario");
+                            fallback.run();
                         }
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "Error al obtener documento de usuario para actualizar tokens", e);
                     });
         }
     }
 
-    private void signOut() {
-        showToast("Cerrando sesión...");
 
-        if (mAuth != null) {
-            mAuth.signOut();
-            Intent intent = new Intent(getApplicationContext(), Inicio_seccion.class);
-            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-            startActivity(intent);
-            finish();
-        }
-    }
 
+    @Override
+    public void onConversationClick(ConversationSummary summary) {
+        Log.d(TAG, "Click en conversación: " + summary.conversationId + " con " + summary.otherUserName);
 
+        Intent intent = new Intent(this, chats.class);
+        intent.putExtra("usuario_seleccionado", summary.otherUserName);
+        intent.putExtra("usuario_id", summary.otherUserId);
+        intent.putExtra("current_user_name", nombreUsuario);
+        startActivity(intent);
+    }
 
     public void onUserClick(Usuario usuario) {
         Log.d(TAG, "Click en usuario: " + usuario.nombre + " (ID: " + usuario.id + ")");
@@ -300,6 +595,9 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
         intent.putExtra("usuario_id", usuario.id);
         intent.putExtra("current_user_name", nombreUsuario);
         startActivity(intent);
+
+        // Al volver, la conversación nueva ya aparece en la bandeja
+        showInbox();
     }
 
     // Clase simple para representar un usuario
@@ -314,6 +612,26 @@ public class MainChats extends AppCompatActivity implements UsersAdapter.OnUserC
             fcmTokens = new ArrayList<>();
         }
 
+        // null si el documento no tiene nombre (no se muestra en el directorio)
+        public static Usuario fromDocument(DocumentSnapshot document) {
+            Usuario usuario = new Usuario();
+            usuario.id = document.getString("id");
+            if (usuario.id == null) {
+                usuario.id = document.getId();
+            }
+            usuario.nombre = document.getString("nombre");
+            usuario.email = document.getString("email");
+            if (usuario.nombre == null || usuario.nombre.isEmpty()) {
+                return null;
+            }
+            return usuario;
+        }
+
+        // Campos que se muestran en el directorio
+        public boolean sameContentAs(Usuario other) {
+            return Objects.equals(nombre, other.nombre) && Objects.equals(email, other.email);
+        }
+
         public String getId() {
             return id;
         }
@@ -26,6 +26,10 @@ public class Message {
     private String messageType; // "text" o "image"
     private String imageUrl;    // URL de la imagen en Firebase Storage
     private String imageName;   // Nombre del archivo de imagen
+    // Tamaño final de la imagen subida, para reservar el espacio antes de descargarla (0 si no se conoce)
+    private int imageWidth;
+    private int imageHeight;
+    private long imageSize;     // En bytes
     
     // Constructor vacío requerido por Firestore
     public Message() {
@@ -150,6 +154,30 @@ public class Message {
         this.imageName = imageName;
     }
     
+    public int getImageWidth() {
+        return imageWidth;
+    }
+    
+    public void setImageWidth(int imageWidth) {
+        this.imageWidth = imageWidth;
+    }
+    
+    public int getImageHeight() {
+        return imageHeight;
+    }
+    
+    public void setImageHeight(int imageHeight) {
+        this.imageHeight = imageHeight;
+    }
+    
+    public long getImageSize() {
+        return imageSize;
+    }
+    
+    public void setImageSize(long imageSize) {
+        this.imageSize = imageSize;
+    }
+    
     // Métodos de utilidad
     public boolean isImageMessage() {
         return TYPE_IMAGE.equals(messageType);
@@ -183,6 +211,9 @@ public class Message {
                 ", messageType='" + messageType + '\'' +
                 ", imageUrl='" + imageUrl + '\'' +
                 ", imageName='" + imageName + '\'' +
+                ", imageWidth=" + imageWidth +
+                ", imageHeight=" + imageHeight +
+                ", imageSize=" + imageSize +
                 '}';
     }
 }
\ No newline at end of file
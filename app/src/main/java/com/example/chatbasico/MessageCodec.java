@@ -0,0 +1,122 @@
+package com.example.chatbasico;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Conversión campo a campo entre {@link Message} y los documentos de Firestore.
+ * Reemplaza a {@code toObject(Message.class)} (mapeo por reflexión) y a los HashMap armados a mano,
+ * de modo que los nombres de campo están definidos en un solo lugar.
+ */
+public final class MessageCodec {
+
+    // Nombres de campo en Firestore
+    public static final String FIELD_TEXT = "text";
+    public static final String FIELD_SENDER_ID = "senderId";
+    public static final String FIELD_SENDER_NAME = "senderName";
+    public static final String FIELD_RECEIVER_ID = "receiverId";
+    public static final String FIELD_RECEIVER_NAME = "receiverName";
+    public static final String FIELD_TIMESTAMP = "timestamp";
+    public static final String FIELD_CONVERSATION_ID = "conversationId";
+    public static final String FIELD_MESSAGE_TYPE = "messageType";
+    public static final String FIELD_IMAGE_URL = "imageUrl";
+    public static final String FIELD_IMAGE_NAME = "imageName";
+    public static final String FIELD_IMAGE_WIDTH = "imageWidth";
+    public static final String FIELD_IMAGE_HEIGHT = "imageHeight";
+    public static final String FIELD_IMAGE_SIZE = "imageSize";
+    // Posición del mensaje en una ráfaga enviada en un solo lote (solo los escribe MessageSendBatcher)
+    public static final String FIELD_BURST_INDEX = "burstIndex";
+    public static final String FIELD_BURST_SIZE = "burstSize";
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Decodifica un documento de la colección de mensajes.
+     * Un timestamp del servidor todavía pendiente queda en null (igual que con @ServerTimestamp).
+     */
+    public static Message decode(DocumentSnapshot document) {
+        return decode(document.getId(), document.getData());
+    }
+
+    public static Message decode(String id, Map<String, Object> data) {
+        Message message = new Message();
+        message.setId(id);
+        if (data == null) {
+            return message;
+        }
+
+        message.setText(asString(data.get(FIELD_TEXT)));
+        message.setSenderId(asString(data.get(FIELD_SENDER_ID)));
+        message.setSenderName(asString(data.get(FIELD_SENDER_NAME)));
+        message.setReceiverId(asString(data.get(FIELD_RECEIVER_ID)));
+        message.setReceiverName(asString(data.get(FIELD_RECEIVER_NAME)));
+        message.setTimestamp(asDate(data.get(FIELD_TIMESTAMP)));
+        message.setConversationId(asString(data.get(FIELD_CONVERSATION_ID)));
+        message.setImageUrl(asString(data.get(FIELD_IMAGE_URL)));
+        message.setImageName(asString(data.get(FIELD_IMAGE_NAME)));
+        message.setImageWidth((int) asLong(data.get(FIELD_IMAGE_WIDTH)));
+        message.setImageHeight((int) asLong(data.get(FIELD_IMAGE_HEIGHT)));
+        message.setImageSize(asLong(data.get(FIELD_IMAGE_SIZE)));
+
+        // Igual que el constructor vacío: si no viene el tipo, es texto
+        String messageType = asString(data.get(FIELD_MESSAGE_TYPE));
+        if (messageType != null) {
+            message.setMessageType(messageType);
+        }
+        return message;
+    }
+
+    /**
+     * Arma el mapa para escribir un mensaje nuevo. Si el mensaje no tiene timestamp se usa el del servidor.
+     */
+    public static Map<String, Object> encode(Message message) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_SENDER_ID, message.getSenderId());
+        data.put(FIELD_SENDER_NAME, message.getSenderName());
+        data.put(FIELD_RECEIVER_ID, message.getReceiverId());
+        data.put(FIELD_RECEIVER_NAME, message.getReceiverName());
+        data.put(FIELD_CONVERSATION_ID, message.getConversationId());
+        data.put(FIELD_MESSAGE_TYPE, message.getMessageType());
+        data.put(FIELD_TEXT, message.getText() != null ? message.getText() : "");
+        data.put(FIELD_TIMESTAMP, message.getTimestamp() != null
+                ? message.getTimestamp()
+                : FieldValue.serverTimestamp());
+
+        if (message.isImageMessage()) {
+            data.put(FIELD_IMAGE_URL, message.getImageUrl());
+            data.put(FIELD_IMAGE_NAME, message.getImageName());
+            // Las imágenes viejas no tienen dimensiones: solo se escriben si se conocen
+            if (message.getImageWidth() > 0 && message.getImageHeight() > 0) {
+                data.put(FIELD_IMAGE_WIDTH, message.getImageWidth());
+                data.put(FIELD_IMAGE_HEIGHT, message.getImageHeight());
+                data.put(FIELD_IMAGE_SIZE, message.getImageSize());
+            }
+        }
+        return data;
+    }
+
+    private static String asString(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    // Firestore devuelve los enteros como Long
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static Date asDate(Object value) {
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toDate();
+        }
+        if (value instanceof Date) {
+            return (Date) value;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,383 @@
+package com.example.chatbasico;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.MetadataChanges;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Carga paginada de los mensajes de una conversación.
+ * Solo se escucha en vivo la ventana de los últimos mensajes (limitToLast) y las
+ * páginas anteriores se piden bajo demanda usando el mensaje más antiguo como cursor.
+ * En modo ancla se carga una ventana alrededor de un mensaje y se pagina en ambas direcciones;
+ * la escucha en vivo empieza cuando la paginación hacia adelante alcanza el último mensaje.
+ * La escucha desde un cursor (sincronización incremental y fin del modo ancla) está limitada a una página:
+ * cuando se llena se vuelve a escuchar desde su último mensaje, así un hueco largo llega de a páginas
+ * y la escucha no crece durante la sesión.
+ * Los callbacks se entregan en el executor indicado, no en el hilo principal.
+ */
+public class MessagePager {
+
+    private static final String TAG = "MessagePager";
+
+    // Cantidad de mensajes por página (ventana en vivo y páginas anteriores)
+    public static final int DEFAULT_PAGE_SIZE = 30;
+
+    public interface Callback {
+        // Cambios de la ventana en vivo (primera carga y mensajes nuevos)
+        void onLiveSnapshot(QuerySnapshot snapshot);
+
+        // Página de mensajes anteriores, en orden ascendente por timestamp
+        void onOlderPage(List<DocumentSnapshot> documents, boolean hasMore);
+
+        // Ventana inicial del modo ancla; anchorIndex es la posición del mensaje ancla
+        void onAnchorWindow(List<DocumentSnapshot> documents, int anchorIndex);
+
+        // Página de mensajes posteriores (modo ancla), en orden ascendente por timestamp
+        void onNewerPage(List<DocumentSnapshot> documents, boolean hasMore);
+
+        void onError(Exception e);
+    }
+
+    private final CollectionReference messagesRef;
+    private final int pageSize;
+    private final Executor executor;
+    private final Callback callback;
+
+    private volatile ListenerRegistration liveListener;
+    // true mientras la escucha en vivo es la ventana limitToLast (en ella los REMOVED pueden ser desplazamientos)
+    private volatile boolean liveIsWindow = false;
+    private volatile DocumentSnapshot oldestCursor;
+    private volatile DocumentSnapshot newestCursor;
+    // Cursor por valor (timestamp + ID), usado cuando el mensaje más antiguo viene del almacén local
+    private volatile Timestamp oldestTimestamp;
+    private volatile String oldestId;
+    private volatile boolean loadingOlder = false;
+    private volatile boolean loadingNewer = false;
+    private volatile boolean hasMoreOlder = true;
+    private volatile boolean hasMoreNewer = false;
+
+    /**
+     * @param executor hilo en el que se entregan los snapshots y las páginas; si es de fondo,
+     *                 la decodificación de mensajes no bloquea la interfaz
+     */
+    public MessagePager(CollectionReference messagesRef, int pageSize, Executor executor, Callback callback) {
+        this.messagesRef = messagesRef;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.callback = callback;
+    }
+
+    /**
+     * Empieza a escuchar los últimos mensajes de la conversación.
+     */
+    public void start() {
+        stop();
+
+        Log.d(TAG, "Escuchando los últimos " + pageSize + " mensajes");
+
+        liveIsWindow = true;
+        listen(messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .limitToLast(pageSize));
+    }
+
+    /**
+     * Sincronización incremental: escucha los mensajes desde el último guardado localmente (incluido).
+     * Inclusivo porque los mensajes de un lote comparten timestamp: los del lote que todavía no estaban
+     * guardados también llegan. Los repetidos los descartan el adaptador y el almacén.
+     * El hueco desde el último guardado llega de a una página ({@link #advanceTail}).
+     * Las páginas anteriores continúan desde el mensaje más antiguo que ya se muestra.
+     */
+    public void startFrom(Timestamp newestStored, Timestamp oldestShown, String oldestShownId) {
+        stop();
+
+        oldestCursor = null;
+        oldestTimestamp = oldestShown;
+        oldestId = oldestShownId;
+        hasMoreOlder = true;
+
+        Log.d(TAG, "Escuchando mensajes desde " + newestStored.toDate());
+
+        listen(messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING)
+                .startAt(newestStored)
+                .limit(pageSize));
+    }
+
+    /**
+     * Mueve el cursor de páginas anteriores (por ejemplo, después de leer páginas del almacén local).
+     */
+    public void setOldest(Timestamp oldestShown, String oldestShownId) {
+        oldestCursor = null;
+        oldestTimestamp = oldestShown;
+        oldestId = oldestShownId;
+    }
+
+    /**
+     * Indica si un REMOVED de la escucha en vivo es solo el mensaje más antiguo saliendo de la
+     * ventana limitToLast porque llegó uno nuevo al final (el documento sigue existiendo).
+     */
+    public boolean isWindowSlide(QuerySnapshot snapshot, DocumentChange change) {
+        if (!liveIsWindow || change.getType() != DocumentChange.Type.REMOVED || change.getOldIndex() != 0) {
+            return false;
+        }
+        for (DocumentChange other : snapshot.getDocumentChanges()) {
+            if (other.getType() == DocumentChange.Type.ADDED && other.getNewIndex() == snapshot.size() - 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Con MetadataChanges.INCLUDE llega también el paso de "pendiente" a "confirmado" de los mensajes propios
+    private void listen(Query query) {
+        liveListener = query.addSnapshotListener(executor, MetadataChanges.INCLUDE, (value, error) -> {
+            if (error != null) {
+                callback.onError(error);
+                return;
+            }
+            if (value == null) {
+                return;
+            }
+
+            // El cursor se fija con la primera ventana; luego solo lo mueven las páginas anteriores
+            if (oldestCursor == null && oldestTimestamp == null) {
+                if (!value.isEmpty()) {
+                    oldestCursor = value.getDocuments().get(0);
+                }
+                hasMoreOlder = value.size() >= pageSize;
+            }
+
+            callback.onLiveSnapshot(value);
+
+            if (!liveIsWindow && value.size() >= pageSize) {
+                advanceTail(value);
+            }
+        });
+    }
+
+    // La página desde el cursor se llenó: se escucha desde su último mensaje confirmado. Los pendientes
+    // no sirven de cursor (su timestamp del servidor todavía no existe) y siguen en la escucha nueva
+    private void advanceTail(QuerySnapshot value) {
+        List<DocumentSnapshot> documents = value.getDocuments();
+        for (int i = documents.size() - 1; i >= 0; i--) {
+            DocumentSnapshot document = documents.get(i);
+            if (!document.getMetadata().hasPendingWrites() && document.get(MessageCodec.FIELD_TIMESTAMP) != null) {
+                Log.d(TAG, "Página en vivo completa, se sigue escuchando después de " + document.getId());
+                listenAfter(document);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Abre la conversación alrededor del mensaje con el ID indicado.
+     * Si el mensaje no existe se cae al modo normal (últimos mensajes).
+     */
+    public void startAtMessage(String messageId) {
+        stop();
+
+        messagesRef.document(messageId)
+                .get()
+                .addOnSuccessListener(executor, anchor -> {
+                    if (anchor.exists() && anchor.get(MessageCodec.FIELD_TIMESTAMP) != null) {
+                        loadAnchorWindow(anchor);
+                    } else {
+                        Log.w(TAG, "Mensaje ancla no encontrado: " + messageId);
+                        start();
+                    }
+                })
+                .addOnFailureListener(executor, e -> {
+                    callback.onError(e);
+                    start();
+                });
+    }
+
+    /**
+     * Abre la conversación en el primer mensaje con timestamp mayor o igual al indicado
+     * (por ejemplo, el primer mensaje sin leer).
+     */
+    public void startAtTimestamp(Date timestamp) {
+        stop();
+
+        messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .startAt(timestamp)
+                .limit(1)
+                .get()
+                .addOnSuccessListener(executor, snapshot -> {
+                    if (!snapshot.isEmpty()) {
+                        loadAnchorWindow(snapshot.getDocuments().get(0));
+                    } else {
+                        Log.d(TAG, "No hay mensajes desde " + timestamp + ", se cargan los últimos");
+                        start();
+                    }
+                })
+                .addOnFailureListener(executor, e -> {
+                    callback.onError(e);
+                    start();
+                });
+    }
+
+    // Media página antes del ancla y media página desde el ancla (incluida)
+    private void loadAnchorWindow(DocumentSnapshot anchor) {
+        int half = Math.max(1, pageSize / 2);
+
+        Task<QuerySnapshot> olderTask = messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .endBefore(anchor)
+                .limitToLast(half)
+                .get();
+        Task<QuerySnapshot> newerTask = messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .startAt(anchor)
+                .limit(half)
+                .get();
+
+        Tasks.whenAllSuccess(olderTask, newerTask)
+                .addOnSuccessListener(executor, results -> {
+                    List<DocumentSnapshot> older = olderTask.getResult().getDocuments();
+                    List<DocumentSnapshot> newer = newerTask.getResult().getDocuments();
+
+                    List<DocumentSnapshot> window = new ArrayList<>(older.size() + newer.size());
+                    window.addAll(older);
+                    window.addAll(newer);
+
+                    oldestCursor = window.get(0);
+                    oldestTimestamp = null;
+                    oldestId = null;
+                    newestCursor = window.get(window.size() - 1);
+                    hasMoreOlder = older.size() >= half;
+                    hasMoreNewer = newer.size() >= half;
+
+                    Log.d(TAG, "Ventana ancla: " + older.size() + " anteriores, " + newer.size() + " desde el ancla");
+                    callback.onAnchorWindow(window, older.size());
+
+                    if (!hasMoreNewer) {
+                        listenAfterNewest();
+                    }
+                })
+                .addOnFailureListener(executor, callback::onError);
+    }
+
+    /**
+     * Pide la página posterior al mensaje más reciente cargado (solo en modo ancla).
+     */
+    public void loadNewer() {
+        if (loadingNewer || !hasMoreNewer || newestCursor == null) {
+            return;
+        }
+        loadingNewer = true;
+
+        Log.d(TAG, "Cargando página posterior a " + newestCursor.getId());
+
+        messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .startAfter(newestCursor)
+                .limit(pageSize)
+                .get()
+                .addOnSuccessListener(executor, snapshot -> {
+                    loadingNewer = false;
+                    List<DocumentSnapshot> documents = snapshot.getDocuments();
+                    if (!documents.isEmpty()) {
+                        newestCursor = documents.get(documents.size() - 1);
+                    }
+                    hasMoreNewer = documents.size() >= pageSize;
+
+                    Log.d(TAG, "Página posterior: " + documents.size() + " mensajes, hay más: " + hasMoreNewer);
+                    callback.onNewerPage(documents, hasMoreNewer);
+
+                    // Al llegar al final del historial se empieza a escuchar los mensajes nuevos
+                    if (!hasMoreNewer) {
+                        listenAfterNewest();
+                    }
+                })
+                .addOnFailureListener(executor, e -> {
+                    loadingNewer = false;
+                    callback.onError(e);
+                });
+    }
+
+    // Escucha solo los mensajes posteriores al más reciente ya cargado
+    private void listenAfterNewest() {
+        Log.d(TAG, "Escuchando mensajes nuevos después de " + newestCursor.getId());
+        listenAfter(newestCursor);
+    }
+
+    // Escucha acotada a una página después del mensaje indicado
+    private void listenAfter(DocumentSnapshot cursor) {
+        stop();
+
+        listen(messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING)
+                .startAfter(cursor)
+                .limit(pageSize));
+    }
+
+    /**
+     * Pide la página anterior al mensaje más antiguo cargado.
+     * Se ignora si ya hay una carga en curso o si no quedan mensajes anteriores.
+     */
+    public void loadOlder() {
+        if (loadingOlder || !hasMoreOlder || (oldestCursor == null && oldestTimestamp == null)) {
+            return;
+        }
+        loadingOlder = true;
+
+        // Cursor exclusivo sobre (timestamp, ID): ni se saltea ni se repite un mensaje de un lote
+        // (mismo timestamp), y la página avanza aunque haya más de pageSize con el mismo timestamp
+        Query query = messagesRef
+                .orderBy(MessageCodec.FIELD_TIMESTAMP, Query.Direction.ASCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING);
+        if (oldestCursor != null) {
+            Log.d(TAG, "Cargando página anterior a " + oldestCursor.getId());
+            query = query.endBefore(oldestCursor);
+        } else {
+            Log.d(TAG, "Cargando página anterior a " + oldestId + " (" + oldestTimestamp.toDate() + ")");
+            query = query.endBefore(oldestTimestamp, oldestId);
+        }
+
+        query.limitToLast(pageSize)
+                .get()
+                .addOnSuccessListener(executor, snapshot -> {
+                    loadingOlder = false;
+                    List<DocumentSnapshot> documents = snapshot.getDocuments();
+                    if (!documents.isEmpty()) {
+                        oldestCursor = documents.get(0);
+                    }
+                    hasMoreOlder = documents.size() >= pageSize;
+
+                    Log.d(TAG, "Página anterior: " + documents.size() + " mensajes, hay más: " + hasMoreOlder);
+                    callback.onOlderPage(documents, hasMoreOlder);
+                })
+                .addOnFailureListener(executor, e -> {
+                    loadingOlder = false;
+                    callback.onError(e);
+                });
+    }
+
+    public void stop() {
+        liveIsWindow = false;
+        if (liveListener != null) {
+            liveListener.remove();
+            liveListener = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.chatbasico;
+
+import java.util.Objects;
+
+/**
+ * Fila inmutable de {@link ChatAdapter}, lista para mostrarse.
+ * Se arma fuera del hilo principal con {@link MessageRowFactory}: el bind solo asigna estos valores.
+ */
+public final class MessageRow {
+
+    public static final int NOT_UPLOADING = -1;
+
+    public final String id;
+    public final int viewType;
+    public final String senderName;
+    public final String text;
+    public final String formattedTime;
+    public final String imageUrl;
+    // Dimensiones de la imagen subida (0 si no se conocen)
+    public final int imageWidth;
+    public final int imageHeight;
+    // Progreso (0-100) de una imagen propia que se está subiendo; NOT_UPLOADING si no es un envío pendiente
+    public final int uploadProgress;
+    // Mensaje propio escrito localmente que el servidor todavía no confirmó (hasPendingWrites)
+    public final boolean pending;
+    public final Message message;
+
+    MessageRow(String id, int viewType, String senderName, String text, String formattedTime,
+               String imageUrl, int imageWidth, int imageHeight, int uploadProgress, boolean pending, Message message) {
+        this.id = id;
+        this.viewType = viewType;
+        this.senderName = senderName;
+        this.text = text;
+        this.formattedTime = formattedTime;
+        this.imageUrl = imageUrl;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.uploadProgress = uploadProgress;
+        this.pending = pending;
+        this.message = message;
+    }
+
+    public boolean hasImage() {
+        return imageUrl != null && !imageUrl.isEmpty();
+    }
+
+    public boolean isUploading() {
+        return uploadProgress != NOT_UPLOADING;
+    }
+
+    public boolean hasImageSize() {
+        return imageWidth > 0 && imageHeight > 0;
+    }
+
+    // Compara solo lo que se muestra (lo usa el diff del adaptador)
+    boolean sameContentAs(MessageRow other) {
+        return viewType == other.viewType
+                && Objects.equals(senderName, other.senderName)
+                && Objects.equals(text, other.text)
+                && Objects.equals(formattedTime, other.formattedTime)
+                && Objects.equals(imageUrl, other.imageUrl)
+                && imageWidth == other.imageWidth
+                && imageHeight == other.imageHeight
+                && uploadProgress == other.uploadProgress
+                && pending == other.pending;
+    }
+}
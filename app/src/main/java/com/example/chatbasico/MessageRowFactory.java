@@ -0,0 +1,76 @@
+package com.example.chatbasico;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Convierte mensajes en filas inmutables para {@link ChatAdapter}.
+ * Es seguro usarla desde cualquier hilo (DateTimeFormatter es inmutable, a diferencia de SimpleDateFormat).
+ */
+public class MessageRowFactory {
+
+    private final String currentUserId;
+    private final DateTimeFormatter timeFormatter;
+    private final ZoneId zoneId;
+
+    public MessageRowFactory(String currentUserId) {
+        this.currentUserId = currentUserId;
+        this.timeFormatter = DateTimeFormatter.ofPattern("HH:mm", Locale.getDefault());
+        this.zoneId = ZoneId.systemDefault();
+    }
+
+    // Marca que acompaña la hora de un mensaje propio aún sin confirmar por el servidor
+    private static final String PENDING_MARK = " 🕓";
+
+    public MessageRow toRow(Message message) {
+        return toRow(message, MessageRow.NOT_UPLOADING, false);
+    }
+
+    public MessageRow toRow(Message message, boolean pending) {
+        return toRow(message, MessageRow.NOT_UPLOADING, pending);
+    }
+
+    /**
+     * Fila de una imagen propia que todavía se está subiendo: muestra el archivo local y el progreso.
+     */
+    public MessageRow toUploadingRow(ImageUploadQueue.PendingUpload upload, int progress) {
+        Message message = upload.toMessage();
+        message.setImageUrl(ImageUploadQueue.fileUri(upload).toString());
+        return toRow(message, progress, true);
+    }
+
+    private MessageRow toRow(Message message, int uploadProgress, boolean pending) {
+        boolean isSent = currentUserId != null && currentUserId.equals(message.getSenderId());
+        boolean isImage = message.isImageMessage();
+
+        int viewType;
+        if (isSent) {
+            viewType = isImage ? ChatAdapter.VIEW_TYPE_SENT_IMAGE : ChatAdapter.VIEW_TYPE_SENT_TEXT;
+        } else {
+            viewType = isImage ? ChatAdapter.VIEW_TYPE_RECEIVED_IMAGE : ChatAdapter.VIEW_TYPE_RECEIVED_TEXT;
+        }
+
+        // Sin timestamp (ni estimado) no se inventa una hora: se deja vacía hasta que llegue
+        String formattedTime = message.getTimestamp() != null
+                ? timeFormatter.format(Instant.ofEpochMilli(message.getTimestamp().getTime()).atZone(zoneId))
+                : "";
+        if (pending) {
+            formattedTime += PENDING_MARK;
+        }
+
+        return new MessageRow(
+                message.getId(),
+                viewType,
+                message.getSenderName() != null ? message.getSenderName() : "",
+                message.getText() != null ? message.getText() : "",
+                formattedTime,
+                message.getImageUrl(),
+                message.getImageWidth(),
+                message.getImageHeight(),
+                uploadProgress,
+                pending,
+                message);
+    }
+}
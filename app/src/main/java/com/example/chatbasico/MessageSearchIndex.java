@@ -0,0 +1,258 @@
+package com.example.chatbasico;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Búsqueda de texto completo sin conexión sobre los mensajes guardados en el dispositivo.
+ * El índice (FTS4) se actualiza en la misma transacción en que {@link MessageStore} guarda cada mensaje.
+ */
+public class MessageSearchIndex {
+
+    private static final String TAG = "MessageSearchIndex";
+
+    // Coincidencias que se puntúan como máximo: las más recientemente guardadas (docid descendente).
+    // Acota el costo de un prefijo muy común sobre cientos de miles de mensajes
+    static final int MAX_CANDIDATES = 5_000;
+    // Palabras más cortas se buscan completas, no como prefijo ("a" no encuentra todo lo que empieza con a)
+    static final int MIN_PREFIX_LENGTH = 2;
+
+    public interface SearchCallback {
+        void onResults(List<SearchHit> hits);
+    }
+
+    // Resultado de búsqueda: alcanza con conversationId + messageId para abrir el chat en ese mensaje
+    public static class SearchHit {
+        public final String conversationId;
+        public final String messageId;
+        public final String senderName;
+        public final String text;
+        public final long timestampMillis;
+        public final double score;
+
+        SearchHit(String conversationId, String messageId, String senderName, String text,
+                  long timestampMillis, double score) {
+            this.conversationId = conversationId;
+            this.messageId = messageId;
+            this.senderName = senderName;
+            this.text = text;
+            this.timestampMillis = timestampMillis;
+            this.score = score;
+        }
+    }
+
+    private static MessageSearchIndex instance;
+
+    private final ChatDatabase database;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized MessageSearchIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageSearchIndex(ChatDatabase.getInstance(context));
+        }
+        return instance;
+    }
+
+    // Coincidencia ya puntuada, antes de leer sus datos completos
+    private static class Candidate {
+        final long rowId;
+        final long timestampMicros;
+        final double score;
+
+        Candidate(long rowId, long timestampMicros, double score) {
+            this.rowId = rowId;
+            this.timestampMicros = timestampMicros;
+            this.score = score;
+        }
+    }
+
+    // Más relevante primero; a igual relevancia, más reciente primero
+    private static final Comparator<Candidate> BY_RELEVANCE = (a, b) -> {
+        int byScore = Double.compare(b.score, a.score);
+        return byScore != 0 ? byScore : Long.compare(b.timestampMicros, a.timestampMicros);
+    };
+
+    MessageSearchIndex(ChatDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Indexa (o reindexa) un mensaje guardado. Se llama dentro de la transacción de {@link MessageStore}.
+     */
+    static void index(SQLiteDatabase db, long rowId, ContentValues values) {
+        String[] docId = new String[]{String.valueOf(rowId)};
+        db.delete(ChatDatabase.TABLE_MESSAGES_FTS, "docid = ?", docId);
+
+        String type = values.getAsString(ChatDatabase.COL_MESSAGE_TYPE);
+        String text = values.getAsString(ChatDatabase.COL_TEXT);
+        boolean isText = type == null || Message.TYPE_TEXT.equals(type);
+        if (!isText || text == null || text.trim().isEmpty()) {
+            return;
+        }
+
+        ContentValues ftsValues = new ContentValues();
+        ftsValues.put("docid", rowId);
+        ftsValues.put(ChatDatabase.COL_FTS_TEXT, text);
+        db.insert(ChatDatabase.TABLE_MESSAGES_FTS, null, ftsValues);
+    }
+
+    /**
+     * Busca en todas las conversaciones. Cada palabra de {@value #MIN_PREFIX_LENGTH} letras o más se busca
+     * como prefijo ("hol" encuentra "hola").
+     * Los resultados llegan en el hilo principal, ordenados por relevancia.
+     */
+    public void search(String query, int limit, SearchCallback callback) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            List<SearchHit> hits = searchNow(query, limit);
+            Log.d(TAG, "Búsqueda '" + query + "': " + hits.size() + " resultados en "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            mainHandler.post(() -> callback.onResults(hits));
+        });
+    }
+
+    /**
+     * Puntúa las coincidencias y devuelve las {@code limit} mejores. Se puntúan como máximo
+     * {@value #MAX_CANDIDATES}, las más recientemente guardadas: más allá de eso una coincidencia vieja
+     * no aparece aunque sea más relevante.
+     * Primero se recorren los candidatos leyendo solo docid, timestamp y matchinfo, guardando
+     * las mejores en un montículo de tamaño {@code limit}; después se leen los datos solo de esas.
+     * SQLite de Android no permite registrar funciones propias antes de la API 30, por eso la puntuación
+     * se calcula aquí y no en un ORDER BY.
+     */
+    List<SearchHit> searchNow(String query, int limit) {
+        String matchExpression = toMatchExpression(query);
+        if (matchExpression == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        SQLiteDatabase db = database.getReadableDatabase();
+
+        // matchinfo 'pcnx': frases, columnas, filas totales y (aciertos fila, aciertos total, filas con acierto)
+        // FTS4 recorre por docid sin ordenar aparte: el LIMIT corta antes de leer el resto
+        String sql = "SELECT f.docid, m." + ChatDatabase.COL_TIMESTAMP_MICROS + ", f.info"
+                + " FROM (SELECT docid, matchinfo(" + ChatDatabase.TABLE_MESSAGES_FTS + ", 'pcnx') AS info"
+                + " FROM " + ChatDatabase.TABLE_MESSAGES_FTS
+                + " WHERE " + ChatDatabase.TABLE_MESSAGES_FTS + " MATCH ?"
+                + " ORDER BY docid DESC LIMIT " + MAX_CANDIDATES + ") f"
+                + " JOIN " + ChatDatabase.TABLE_MESSAGES + " m ON m.rowid = f.docid";
+
+        // El peor de los mejores queda arriba para poder descartarlo
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, BY_RELEVANCE.reversed());
+        try (Cursor cursor = db.rawQuery(sql, new String[]{matchExpression})) {
+            while (cursor.moveToNext()) {
+                best.add(new Candidate(cursor.getLong(0), cursor.getLong(1), score(cursor.getBlob(2))));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error en búsqueda local", e);
+            return Collections.emptyList();
+        }
+        if (best.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Candidate> ranked = new ArrayList<>(best);
+        Collections.sort(ranked, BY_RELEVANCE);
+        return loadHits(db, ranked);
+    }
+
+    // Lee los datos de los mensajes elegidos, conservando el orden por relevancia
+    private List<SearchHit> loadHits(SQLiteDatabase db, List<Candidate> ranked) {
+        StringBuilder placeholders = new StringBuilder();
+        String[] args = new String[ranked.size()];
+        for (int i = 0; i < ranked.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+            args[i] = String.valueOf(ranked.get(i).rowId);
+        }
+
+        // rowid → {conversationId, messageId, senderName, text}
+        Map<Long, String[]> byRowId = new HashMap<>();
+        try (Cursor cursor = db.rawQuery("SELECT rowid"
+                + ", " + ChatDatabase.COL_CONVERSATION_ID
+                + ", " + ChatDatabase.COL_MESSAGE_ID
+                + ", " + ChatDatabase.COL_SENDER_NAME
+                + ", " + ChatDatabase.COL_TEXT
+                + " FROM " + ChatDatabase.TABLE_MESSAGES
+                + " WHERE rowid IN (" + placeholders + ")", args)) {
+            while (cursor.moveToNext()) {
+                byRowId.put(cursor.getLong(0), new String[]{
+                        cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4)});
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error leyendo resultados de búsqueda", e);
+            return Collections.emptyList();
+        }
+
+        List<SearchHit> hits = new ArrayList<>(ranked.size());
+        for (Candidate candidate : ranked) {
+            String[] row = byRowId.get(candidate.rowId);
+            if (row != null) {
+                hits.add(new SearchHit(row[0], row[1], row[2], row[3],
+                        candidate.timestampMicros / 1_000, candidate.score));
+            }
+        }
+        return hits;
+    }
+
+    // Puntuación tipo TF-IDF a partir del blob de matchinfo('pcnx')
+    private static double score(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt();
+        int columns = buffer.getInt();
+        int totalRows = buffer.getInt();
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int hitsInRow = buffer.getInt();
+                buffer.getInt(); // aciertos en todas las filas
+                int rowsWithHits = buffer.getInt();
+                if (hitsInRow > 0) {
+                    double idf = Math.log(1.0 + (totalRows - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+                    score += idf * hitsInRow / (hitsInRow + 1.2);
+                }
+            }
+        }
+        return score;
+    }
+
+    // Convierte el texto del usuario en una expresión MATCH segura: "palabra1*" "palabra2*" ("a" sin prefijo)
+    private static String toMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            String clean = term.replace("\"", "");
+            if (clean.isEmpty()) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(clean).append(clean.length() >= MIN_PREFIX_LENGTH ? "*\"" : "\"");
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.chatbasico;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Junta los mensajes enviados en ráfaga (pegar varias líneas, enviar seguido) en un solo WriteBatch.
+ * El primer mensaje abre una ventana de {@code windowMs}; lo que llegue antes de que cierre se escribe junto.
+ * - Cada mensaje sigue siendo su propio documento con un ID generado en el cliente.
+ * - Los mensajes de un mismo lote reciben el mismo timestamp del servidor; los IDs se generan como
+ *   base + índice para que el desempate por ID (implícito en las consultas) conserve el orden de envío.
+ * - Cada mensaje lleva su posición en la ráfaga (burstIndex/burstSize): la Cloud Function notifica
+ *   una sola vez por ráfaga, con el último mensaje.
+ * Con {@code windowMs} = 0 cada mensaje se escribe al momento, como antes.
+ * Se usa solo desde el hilo principal.
+ */
+public class MessageSendBatcher {
+
+    private static final String TAG = "MessageSendBatcher";
+
+    public static final long DEFAULT_WINDOW_MS = 75;
+    // Por debajo del tamaño de página, para que un lote (todo con el mismo timestamp) quepa en una página
+    public static final int MAX_BATCH_SIZE = 20;
+
+    public interface Listener {
+        void onSendFailed(int messageCount, Exception e);
+    }
+
+    private final FirebaseFirestore database;
+    private final CollectionReference messagesRef;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Map<String, Object>> queued = new ArrayList<>();
+    private final Runnable flushRunnable = this::flush;
+    private long windowMs;
+    private Listener listener;
+
+    public MessageSendBatcher(FirebaseFirestore database, CollectionReference messagesRef, long windowMs) {
+        this.database = database;
+        this.messagesRef = messagesRef;
+        this.windowMs = windowMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // 0 desactiva la agrupación
+    public void setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+        if (windowMs <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Encola un mensaje ya codificado (ver {@link MessageCodec#encode(Message)}).
+     */
+    public void send(Map<String, Object> message) {
+        queued.add(message);
+        if (windowMs <= 0 || queued.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (queued.size() == 1) {
+            handler.postDelayed(flushRunnable, windowMs);
+        }
+    }
+
+    /**
+     * Escribe ya lo que esté en cola (por ejemplo, al salir de la pantalla).
+     * La escritura local es inmediata: aunque el proceso muera, Firestore la reenvía después.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        if (queued.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> messages = new ArrayList<>(queued);
+        queued.clear();
+
+        if (messages.size() == 1) {
+            messagesRef.document().set(messages.get(0))
+                    .addOnFailureListener(e -> notifyFailure(1, e));
+            return;
+        }
+
+        String baseId = messagesRef.document().getId();
+        WriteBatch batch = database.batch();
+        for (int i = 0; i < messages.size(); i++) {
+            // Copia: el mapa es del llamador
+            Map<String, Object> message = new HashMap<>(messages.get(i));
+            message.put(MessageCodec.FIELD_BURST_INDEX, i);
+            message.put(MessageCodec.FIELD_BURST_SIZE, messages.size());
+            batch.set(messagesRef.document(baseId + String.format(Locale.ROOT, "_%02d", i)), message);
+        }
+
+        int count = messages.size();
+        Log.d(TAG, "Enviando " + count + " mensajes en un lote");
+        batch.commit()
+                .addOnSuccessListener(unused -> Log.d(TAG, "Lote de " + count + " mensajes confirmado"))
+                .addOnFailureListener(e -> notifyFailure(count, e));
+    }
+
+    // Suelta el listener (la Activity) y escribe lo pendiente
+    public void release() {
+        flush();
+        listener = null;
+    }
+
+    private void notifyFailure(int count, Exception e) {
+        Log.e(TAG, "Error al enviar " + count + " mensajes", e);
+        if (listener != null) {
+            listener.onSendFailed(count, e);
+        }
+    }
+}
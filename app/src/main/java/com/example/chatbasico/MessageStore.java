@@ -0,0 +1,257 @@
+package com.example.chatbasico;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Almacén local de mensajes por conversación.
+ * Todas las operaciones se hacen en un hilo de fondo; los resultados se entregan en el hilo principal.
+ * Solo se guardan mensajes con timestamp del servidor ya asignado.
+ * Los mensajes de texto guardados se agregan también al índice de búsqueda ({@link MessageSearchIndex}).
+ */
+public class MessageStore {
+
+    private static final String TAG = "MessageStore";
+
+    public interface LoadCallback {
+        // Mensajes en orden ascendente por timestamp
+        void onLoaded(List<StoredMessage> messages);
+    }
+
+    // Mensaje guardado junto con su timestamp exacto del servidor
+    public static class StoredMessage {
+        public final Message message;
+        public final Timestamp timestamp;
+
+        StoredMessage(Message message, Timestamp timestamp) {
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static MessageStore instance;
+
+    private final ChatDatabase database;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized MessageStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(ChatDatabase.getInstance(context));
+        }
+        return instance;
+    }
+
+    private MessageStore(ChatDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Carga los últimos mensajes guardados de una conversación.
+     */
+    public void loadLatest(String conversationId, int limit, LoadCallback callback) {
+        executor.execute(() -> {
+            List<StoredMessage> result = query(conversationId, null, null, limit);
+            mainHandler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Carga los mensajes guardados anteriores al mensaje indicado, en el orden (timestamp, ID) de Firestore.
+     * El cursor incluye el ID porque los mensajes de un lote comparten timestamp: así no se saltea
+     * ninguno y la página avanza aunque haya más de {@code limit} con el mismo timestamp.
+     */
+    public void loadBefore(String conversationId, Timestamp before, String beforeId, int limit, LoadCallback callback) {
+        executor.execute(() -> {
+            List<StoredMessage> result = query(conversationId, before, beforeId, limit);
+            mainHandler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Guarda (o reemplaza) los documentos de mensajes recibidos de Firestore.
+     */
+    public void saveDocuments(String conversationId, List<DocumentSnapshot> documents) {
+        // Extraer los valores en el hilo actual; los snapshots no se comparten entre hilos
+        List<ContentValues> rows = new ArrayList<>(documents.size());
+        for (DocumentSnapshot document : documents) {
+            ContentValues values = toContentValues(conversationId, document);
+            if (values != null) {
+                rows.add(values);
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        executor.execute(() -> {
+            SQLiteDatabase db = database.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues values : rows) {
+                    long rowId = upsert(db, values);
+                    MessageSearchIndex.index(db, rowId, values);
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error guardando mensajes", e);
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * Borra un mensaje eliminado en el servidor (y su entrada en el índice de búsqueda).
+     */
+    public void deleteMessage(String conversationId, String messageId) {
+        executor.execute(() -> {
+            SQLiteDatabase db = database.getWritableDatabase();
+            String[] key = new String[]{conversationId, messageId};
+            db.beginTransaction();
+            try {
+                db.execSQL("DELETE FROM " + ChatDatabase.TABLE_MESSAGES_FTS + " WHERE docid IN (SELECT rowid FROM "
+                        + ChatDatabase.TABLE_MESSAGES + " WHERE " + ChatDatabase.COL_CONVERSATION_ID + " = ? AND "
+                        + ChatDatabase.COL_MESSAGE_ID + " = ?)", key);
+                db.delete(ChatDatabase.TABLE_MESSAGES, ChatDatabase.COL_CONVERSATION_ID + " = ? AND "
+                        + ChatDatabase.COL_MESSAGE_ID + " = ?", key);
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error borrando mensaje", e);
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    // Actualiza la fila existente sin cambiar su rowid (lo usa el índice de búsqueda) o la inserta
+    private long upsert(SQLiteDatabase db, ContentValues values) {
+        String[] key = new String[]{
+                values.getAsString(ChatDatabase.COL_CONVERSATION_ID),
+                values.getAsString(ChatDatabase.COL_MESSAGE_ID)
+        };
+        try (Cursor cursor = db.rawQuery("SELECT rowid FROM " + ChatDatabase.TABLE_MESSAGES
+                + " WHERE " + ChatDatabase.COL_CONVERSATION_ID + " = ? AND "
+                + ChatDatabase.COL_MESSAGE_ID + " = ?", key)) {
+            if (cursor.moveToFirst()) {
+                long rowId = cursor.getLong(0);
+                db.update(ChatDatabase.TABLE_MESSAGES, values, "rowid = ?",
+                        new String[]{String.valueOf(rowId)});
+                return rowId;
+            }
+        }
+        return db.insertOrThrow(ChatDatabase.TABLE_MESSAGES, null, values);
+    }
+
+    private ContentValues toContentValues(String conversationId, DocumentSnapshot document) {
+        Map<String, Object> data = document.getData();
+        Object timestampValue = data != null ? data.get(MessageCodec.FIELD_TIMESTAMP) : null;
+        if (!(timestampValue instanceof Timestamp)) {
+            // Escritura pendiente: se guardará cuando llegue con el timestamp del servidor
+            return null;
+        }
+        Timestamp timestamp = (Timestamp) timestampValue;
+        Message message = MessageCodec.decode(document.getId(), data);
+
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabase.COL_CONVERSATION_ID, conversationId);
+        values.put(ChatDatabase.COL_MESSAGE_ID, message.getId());
+        values.put(ChatDatabase.COL_SENDER_ID, message.getSenderId());
+        values.put(ChatDatabase.COL_SENDER_NAME, message.getSenderName());
+        values.put(ChatDatabase.COL_RECEIVER_ID, message.getReceiverId());
+        values.put(ChatDatabase.COL_RECEIVER_NAME, message.getReceiverName());
+        values.put(ChatDatabase.COL_TEXT, message.getText());
+        values.put(ChatDatabase.COL_TIMESTAMP_MICROS, toMicros(timestamp));
+        values.put(ChatDatabase.COL_MESSAGE_TYPE, message.getMessageType());
+        values.put(ChatDatabase.COL_IMAGE_URL, message.getImageUrl());
+        values.put(ChatDatabase.COL_IMAGE_NAME, message.getImageName());
+        values.put(ChatDatabase.COL_IMAGE_WIDTH, message.getImageWidth());
+        values.put(ChatDatabase.COL_IMAGE_HEIGHT, message.getImageHeight());
+        return values;
+    }
+
+    private List<StoredMessage> query(String conversationId, Timestamp before, String beforeId, int limit) {
+        List<StoredMessage> result = new ArrayList<>();
+        SQLiteDatabase db = database.getReadableDatabase();
+
+        String selection = ChatDatabase.COL_CONVERSATION_ID + " = ?";
+        String[] args = new String[]{conversationId};
+        if (before != null) {
+            String micros = String.valueOf(toMicros(before));
+            selection += " AND (" + ChatDatabase.COL_TIMESTAMP_MICROS + " < ? OR ("
+                    + ChatDatabase.COL_TIMESTAMP_MICROS + " = ? AND " + ChatDatabase.COL_MESSAGE_ID + " < ?))";
+            args = new String[]{conversationId, micros, micros, beforeId};
+        }
+
+        // Se leen los más recientes primero y luego se invierte el orden.
+        // A igual timestamp se desempata por ID, como Firestore
+        try (Cursor cursor = db.query(ChatDatabase.TABLE_MESSAGES, null, selection, args,
+                null, null, ChatDatabase.COL_TIMESTAMP_MICROS + " DESC, " + ChatDatabase.COL_MESSAGE_ID + " DESC",
+                String.valueOf(limit))) {
+            int conversationIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_CONVERSATION_ID);
+            int idIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_MESSAGE_ID);
+            int senderIdIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_SENDER_ID);
+            int senderNameIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_SENDER_NAME);
+            int receiverIdIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_RECEIVER_ID);
+            int receiverNameIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_RECEIVER_NAME);
+            int textIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_TEXT);
+            int timestampIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_TIMESTAMP_MICROS);
+            int typeIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_MESSAGE_TYPE);
+            int imageUrlIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_IMAGE_URL);
+            int imageNameIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_IMAGE_NAME);
+            int imageWidthIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_IMAGE_WIDTH);
+            int imageHeightIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_IMAGE_HEIGHT);
+
+            while (cursor.moveToNext()) {
+                Timestamp timestamp = fromMicros(cursor.getLong(timestampIdx));
+
+                Message message = new Message();
+                message.setId(cursor.getString(idIdx));
+                message.setConversationId(cursor.getString(conversationIdx));
+                message.setSenderId(cursor.getString(senderIdIdx));
+                message.setSenderName(cursor.getString(senderNameIdx));
+                message.setReceiverId(cursor.getString(receiverIdIdx));
+                message.setReceiverName(cursor.getString(receiverNameIdx));
+                message.setText(cursor.getString(textIdx));
+                message.setTimestamp(timestamp.toDate());
+                if (!cursor.isNull(typeIdx)) {
+                    message.setMessageType(cursor.getString(typeIdx));
+                }
+                message.setImageUrl(cursor.getString(imageUrlIdx));
+                message.setImageName(cursor.getString(imageNameIdx));
+                message.setImageWidth(cursor.getInt(imageWidthIdx));
+                message.setImageHeight(cursor.getInt(imageHeightIdx));
+
+                result.add(new StoredMessage(message, timestamp));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error leyendo mensajes guardados", e);
+        }
+
+        Collections.reverse(result);
+        return result;
+    }
+
+    static long toMicros(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1_000_000L + timestamp.getNanoseconds() / 1_000;
+    }
+
+    static Timestamp fromMicros(long micros) {
+        return new Timestamp(Math.floorDiv(micros, 1_000_000L), (int) Math.floorMod(micros, 1_000_000L) * 1_000);
+    }
+}
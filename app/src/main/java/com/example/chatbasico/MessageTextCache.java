@@ -0,0 +1,76 @@
+package com.example.chatbasico;
+
+import android.util.LruCache;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Medición y layout del texto de los mensajes en un hilo de fondo con {@link PrecomputedTextCompat}.
+ * El resultado se guarda por ID de mensaje; si el texto o los parámetros cambian se vuelve a calcular.
+ * El executor solo mide por adelantado las filas vecinas ({@link #prefetch}). La fila que se está
+ * bindeando nunca espera detrás de esa cola: si su medición no empezó, se hace en el momento
+ * (setTextFuture bloquearía el hilo principal al medir la vista de todos modos).
+ * Se usa solo desde el hilo principal (el cálculo en sí corre en el executor).
+ */
+public class MessageTextCache {
+
+    private static final int MAX_ENTRIES = 300;
+
+    private static class Entry {
+        final String text;
+        final PrecomputedTextCompat.Params params;
+        final Future<PrecomputedTextCompat> future;
+
+        Entry(String text, PrecomputedTextCompat.Params params, Future<PrecomputedTextCompat> future) {
+            this.text = text;
+            this.params = params;
+            this.future = future;
+        }
+    }
+
+    private final LruCache<String, Entry> cache = new LruCache<>(MAX_ENTRIES);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Devuelve el texto precalculado de la fila, o el cálculo que ya está corriendo.
+     * Si no estaba o seguía en la cola de prefetch, se calcula ahora en este hilo.
+     */
+    public Future<PrecomputedTextCompat> get(MessageRow row, PrecomputedTextCompat.Params params) {
+        Entry entry = cache.get(row.id);
+        if (isCurrent(entry, row, params)) {
+            // cancel(false) solo tiene éxito si todavía no empezó: entonces no se espera la cola
+            if (entry.future.isDone() || !entry.future.cancel(false)) {
+                return entry.future;
+            }
+        }
+
+        Future<PrecomputedTextCompat> future =
+                CompletableFuture.completedFuture(PrecomputedTextCompat.create(row.text, params));
+        cache.put(row.id, new Entry(row.text, params, future));
+        return future;
+    }
+
+    // Encola el cálculo sin esperar el resultado (filas que están por aparecer); nada si ya está o está en cola
+    public void prefetch(MessageRow row, PrecomputedTextCompat.Params params) {
+        if (isCurrent(cache.get(row.id), row, params)) {
+            return;
+        }
+        Future<PrecomputedTextCompat> future = executor.submit(() -> PrecomputedTextCompat.create(row.text, params));
+        cache.put(row.id, new Entry(row.text, params, future));
+    }
+
+    private static boolean isCurrent(Entry entry, MessageRow row, PrecomputedTextCompat.Params params) {
+        return entry != null && !entry.future.isCancelled()
+                && entry.text.equals(row.text) && entry.params.equals(params);
+    }
+
+    public void release() {
+        cache.evictAll();
+        executor.shutdownNow();
+    }
+}
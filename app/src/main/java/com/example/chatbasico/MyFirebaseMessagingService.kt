@@ -8,8 +8,6 @@ import android.content.Intent
 import android.media.RingtoneManager
 import android.os.Build
 import androidx.core.app.NotificationCompat
-import com.google.firebase.auth.FirebaseAuth
-import com.google.firebase.firestore.FirebaseFirestore
 import com.google.firebase.messaging.FirebaseMessagingService
 import com.google.firebase.messaging.RemoteMessage
 import android.util.Log
@@ -54,6 +52,7 @@ class MyFirebaseMessagingService : FirebaseMessagingService() {
         val senderId = remoteMessage.data["senderId"]
         val senderName = remoteMessage.data["senderName"]
         val conversationId = remoteMessage.data["conversationId"]
+        val messageId = remoteMessage.data["messageId"]
         val messageType = remoteMessage.data["messageType"]
 
         Log.d(TAG, "📋 Datos de notificación:")
@@ -78,7 +77,7 @@ class MyFirebaseMessagingService : FirebaseMessagingService() {
         Log.d(TAG, "🔍 DEBUG: Notificación agregada a lista de mostradas")
 
         // Mostrar la notificación
-        showNotification(title, body, conversationId, senderId)
+        showNotification(title, body, conversationId, senderId, senderName, messageId)
 
         // Limpiar lista si crece mucho (mantener solo las últimas 50)
         if (displayedNotifications.size > 50) {
@@ -100,67 +99,21 @@ class MyFirebaseMessagingService : FirebaseMessagingService() {
     override fun onNewToken(token: String) {
         super.onNewToken(token)
         Log.d(TAG, "🔑 Nuevo token FCM generado: ${token.take(20)}...")
-        updateTokenInFirestore(token)
-    }
-
-    /**
-     * Actualiza el token FCM en Firestore
-     */
-    private fun updateTokenInFirestore(token: String) {
-        val userId = FirebaseAuth.getInstance().currentUser?.uid
-        if (userId == null) {
-            Log.w(TAG, "⚠️ Usuario no autenticado, no se puede actualizar token")
-            return
-        }
-
-        Log.d(TAG, "📝 Actualizando token para usuario: $userId")
-
-        val userRef = FirebaseFirestore.getInstance().collection("users").document(userId)
-
-        // Primero obtener los tokens existentes
-        userRef.get()
-            .addOnSuccessListener { document ->
-                val existingTokens = document.get("fcmTokens") as? MutableList<String> ?: mutableListOf()
-                val singleToken = document.getString("fcmToken")
-
-                // Agregar token individual si existe y no está en la lista
-                if (singleToken != null && !existingTokens.contains(singleToken)) {
-                    existingTokens.add(singleToken)
-                }
-
-                // Agregar nuevo token si no existe
-                if (!existingTokens.contains(token)) {
-                    existingTokens.add(token)
-                    Log.d(TAG, "➕ Nuevo token agregado a la lista")
-                } else {
-                    Log.d(TAG, "ℹ️ Token ya existe en la lista")
-                }
-
-                // Actualizar en Firestore
-                val updates = hashMapOf<String, Any>(
-                    "fcmToken" to token, // Token individual (compatibilidad)
-                    "fcmTokens" to existingTokens, // Lista de tokens
-                    "lastTokenUpdate" to com.google.firebase.firestore.FieldValue.serverTimestamp()
-                )
-
-                userRef.update(updates)
-                    .addOnSuccessListener {
-                        Log.d(TAG, "✅ Token actualizado en Firestore")
-                        Log.d(TAG, "📱 Dispositivos registrados: ${existingTokens.size}")
-                    }
-                    .addOnFailureListener { e ->
-                        Log.e(TAG, "❌ Error actualizando token", e)
-                    }
-            }
-            .addOnFailureListener { e ->
-                Log.e(TAG, "❌ Error obteniendo datos del usuario", e)
-            }
+        // Mismo registro que usa MainChats: una sola escritura atómica, sin leer antes
+        TokenRegistrar.register(applicationContext, token)
     }
 
     /**
      * Muestra la notificación en el dispositivo
      */
-    private fun showNotification(title: String, body: String, conversationId: String?, senderId: String?) {
+    private fun showNotification(
+        title: String,
+        body: String,
+        conversationId: String?,
+        senderId: String?,
+        senderName: String?,
+        messageId: String?
+    ) {
         Log.d(TAG, "📢 Mostrando notificación: $title")
         Log.d(TAG, "🔍 DEBUG: ===== CREANDO NOTIFICACIÓN LOCAL =====")
         Log.d(TAG, "🔍 DEBUG: Título: $title")
@@ -184,6 +137,9 @@ class MyFirebaseMessagingService : FirebaseMessagingService() {
             // Agregar datos extras si están disponibles
             conversationId?.let { putExtra("conversationId", it) }
             senderId?.let { putExtra("senderId", it) }
+            senderName?.let { putExtra("senderName", it) }
+            // Mensaje al que se refiere la notificación, para abrir el chat en ese punto
+            messageId?.let { putExtra("messageId", it) }
         }
 
         val pendingIntent = PendingIntent.getActivity(
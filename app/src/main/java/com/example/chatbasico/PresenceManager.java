@@ -0,0 +1,263 @@
+package com.example.chatbasico;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.ProcessLifecycleOwner;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Presencia (en línea / última vez) sobre Realtime Database: status/{uid} = {state, lastChanged}.
+ * - Estado propio: al conectar se registra un onDisconnect que marca "offline" en el servidor
+ *   (cierre de la app, pérdida de red) y luego se escribe "online".
+ * - Al pasar a segundo plano se espera {@link #OFFLINE_GRACE_MS} antes de cortar la conexión (el
+ *   onDisconnect marca "offline"): entrar y salir de la app seguido no genera una escritura por cada cambio.
+ * - Presencia de otros: una sola suscripción por usuario, compartida entre todos los observadores
+ *   (filas del directorio, encabezado del chat). Se suelta un rato después del último observador.
+ * Se usa solo desde el hilo principal.
+ */
+public class PresenceManager implements DefaultLifecycleObserver {
+
+    private static final String TAG = "PresenceManager";
+
+    private static final String STATUS_PATH = "status";
+    private static final String FIELD_STATE = "state";
+    private static final String FIELD_LAST_CHANGED = "lastChanged";
+    private static final String STATE_ONLINE = "online";
+    private static final String STATE_OFFLINE = "offline";
+
+    // Tiempo en segundo plano antes de marcar "offline"
+    static final long OFFLINE_GRACE_MS = 30_000;
+    // Tiempo que se mantiene una suscripción sin observadores (filas que salen y vuelven al desplazar)
+    private static final long UNSUBSCRIBE_DELAY_MS = 5_000;
+
+    public static class Presence {
+        public final boolean online;
+        // Milisegundos del servidor del último cambio; 0 si no se sabe
+        public final long lastChanged;
+
+        Presence(boolean online, long lastChanged) {
+            this.online = online;
+            this.lastChanged = lastChanged;
+        }
+    }
+
+    public interface Listener {
+        void onPresenceChanged(String userId, Presence presence);
+    }
+
+    // Suscripción compartida a status/{uid} de otro usuario
+    private class Subscription implements ValueEventListener {
+        final String userId;
+        final DatabaseReference ref;
+        final Set<Listener> listeners = new LinkedHashSet<>();
+        final Runnable release = this::release;
+        Presence last;
+
+        Subscription(String userId) {
+            this.userId = userId;
+            this.ref = statusRoot.child(userId);
+            ref.addValueEventListener(this);
+        }
+
+        @Override
+        public void onDataChange(@NonNull DataSnapshot snapshot) {
+            last = toPresence(snapshot);
+            for (Listener listener : listeners.toArray(new Listener[0])) {
+                listener.onPresenceChanged(userId, last);
+            }
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+            Log.e(TAG, "Presencia de " + userId + " cancelada: " + error.getMessage());
+        }
+
+        void release() {
+            ref.removeEventListener(this);
+            subscriptions.remove(userId);
+            Log.d(TAG, "Suscripción soltada: " + userId + " (activas: " + subscriptions.size() + ")");
+        }
+    }
+
+    private static PresenceManager instance;
+
+    private final FirebaseDatabase database = FirebaseDatabase.getInstance();
+    private final DatabaseReference statusRoot = database.getReference(STATUS_PATH);
+    private final DatabaseReference connectedRef = database.getReference(".info/connected");
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+    private final Runnable goOfflineRunnable = this::goOffline;
+
+    private String currentUserId;
+    private DatabaseReference ownStatusRef;
+    private boolean connectionOpen = true;
+    private final ValueEventListener connectionListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(@NonNull DataSnapshot snapshot) {
+            Boolean connected = snapshot.getValue(Boolean.class);
+            if (connected == null || !connected || ownStatusRef == null) {
+                return;
+            }
+            // Primero el onDisconnect: si la conexión se corta antes de escribir "online", queda "offline"
+            DatabaseReference ref = ownStatusRef;
+            ref.onDisconnect().setValue(statusValue(STATE_OFFLINE))
+                    .addOnSuccessListener(unused -> ref.setValue(statusValue(STATE_ONLINE)));
+            Log.d(TAG, "Conectado: presencia en línea");
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+            Log.e(TAG, "Estado de conexión cancelado: " + error.getMessage());
+        }
+    };
+
+    public static synchronized PresenceManager getInstance() {
+        if (instance == null) {
+            instance = new PresenceManager();
+        }
+        return instance;
+    }
+
+    private PresenceManager() {
+        ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Empieza a publicar la presencia del usuario que inició sesión.
+     */
+    public void start(String userId) {
+        if (userId == null || userId.equals(currentUserId)) {
+            return;
+        }
+        stop();
+        currentUserId = userId;
+        ownStatusRef = statusRoot.child(userId);
+        connectedRef.addValueEventListener(connectionListener);
+        Log.d(TAG, "Publicando presencia de " + userId);
+    }
+
+    /**
+     * Deja de publicar la presencia (cierre de sesión): marca "offline" y cancela el onDisconnect.
+     */
+    public void stop() {
+        handler.removeCallbacks(goOfflineRunnable);
+        if (ownStatusRef == null) {
+            return;
+        }
+        connectedRef.removeEventListener(connectionListener);
+        ownStatusRef.setValue(statusValue(STATE_OFFLINE));
+        ownStatusRef.onDisconnect().cancel();
+        ownStatusRef = null;
+        currentUserId = null;
+    }
+
+    @Override
+    public void onStart(@NonNull LifecycleOwner owner) {
+        // App en primer plano: si todavía no se había marcado "offline" no se escribe nada
+        handler.removeCallbacks(goOfflineRunnable);
+        if (!connectionOpen) {
+            connectionOpen = true;
+            // Al reconectar, el listener de .info/connected vuelve a escribir "online"
+            database.goOnline();
+        }
+    }
+
+    @Override
+    public void onStop(@NonNull LifecycleOwner owner) {
+        handler.postDelayed(goOfflineRunnable, OFFLINE_GRACE_MS);
+    }
+
+    private void goOffline() {
+        // Al cerrar la conexión el servidor ejecuta el onDisconnect registrado: "offline" con su hora.
+        // Sin conexión abierta tampoco llegan cambios de presencia de otros mientras no se ven
+        connectionOpen = false;
+        database.goOffline();
+        Log.d(TAG, "En segundo plano: presencia fuera de línea");
+    }
+
+    /**
+     * Observa la presencia de un usuario. Si ya se conoce, se entrega enseguida.
+     * Varios observadores del mismo usuario comparten una sola suscripción.
+     */
+    public void observe(String userId, Listener listener) {
+        if (userId == null) {
+            return;
+        }
+        Subscription subscription = subscriptions.get(userId);
+        if (subscription == null) {
+            subscription = new Subscription(userId);
+            subscriptions.put(userId, subscription);
+        }
+        handler.removeCallbacks(subscription.release);
+        subscription.listeners.add(listener);
+        if (subscription.last != null) {
+            listener.onPresenceChanged(userId, subscription.last);
+        }
+    }
+
+    public void removeObserver(String userId, Listener listener) {
+        Subscription subscription = userId != null ? subscriptions.get(userId) : null;
+        if (subscription == null) {
+            return;
+        }
+        subscription.listeners.remove(listener);
+        if (subscription.listeners.isEmpty()) {
+            handler.postDelayed(subscription.release, UNSUBSCRIBE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Texto para mostrar: "En línea", "Últ. vez hoy a las 14:05" o "Últ. vez 03/05".
+     */
+    public static String describe(Presence presence) {
+        if (presence == null) {
+            return "";
+        }
+        if (presence.online) {
+            return "En línea";
+        }
+        if (presence.lastChanged <= 0) {
+            return "Desconectado";
+        }
+        ZoneId zoneId = ZoneId.systemDefault();
+        ZonedDateTime time = Instant.ofEpochMilli(presence.lastChanged).atZone(zoneId);
+        if (time.toLocalDate().equals(LocalDate.now(zoneId))) {
+            return "Últ. vez hoy a las " + DateTimeFormatter.ofPattern("HH:mm").format(time);
+        }
+        return "Últ. vez " + DateTimeFormatter.ofPattern("dd/MM").format(time);
+    }
+
+    private static Map<String, Object> statusValue(String state) {
+        Map<String, Object> value = new HashMap<>();
+        value.put(FIELD_STATE, state);
+        value.put(FIELD_LAST_CHANGED, ServerValue.TIMESTAMP);
+        return value;
+    }
+
+    private static Presence toPresence(DataSnapshot snapshot) {
+        String state = snapshot.child(FIELD_STATE).getValue(String.class);
+        Long lastChanged = snapshot.child(FIELD_LAST_CHANGED).getValue(Long.class);
+        return new Presence(STATE_ONLINE.equals(state), lastChanged != null ? lastChanged : 0);
+    }
+}
@@ -116,8 +116,11 @@ public class RegistrarteContrasena extends AppCompatActivity {
         usuario.put("id", userId);
         usuario.put("nombre", nombreUsuario);
         usuario.put("email", email);
+        // Campos normalizados para la búsqueda por prefijo del directorio
+        usuario.putAll(UserDirectory.searchFields(nombreUsuario, email));
         usuario.put("fcmToken", ""); // Se actualizará después
         usuario.put("timestamp", com.google.firebase.firestore.FieldValue.serverTimestamp());
+        usuario.put(UserCache.FIELD_UPDATED_AT, com.google.firebase.firestore.FieldValue.serverTimestamp());
         
         database.collection("users")
                 .document(userId)
@@ -0,0 +1,191 @@
+package com.example.chatbasico;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro único del token FCM de este dispositivo en users/{uid}.
+ * Lo usan MainChats (al iniciar) y MyFirebaseMessagingService (token nuevo).
+ * - Recuerda localmente lo último registrado: si el token, el usuario y la versión no cambiaron
+ *   no se toca la red (salvo para renovar lastSeen cada {@link #LAST_SEEN_REFRESH_DAYS} días).
+ * - Escribe en un solo lote atómico, sin leer antes: arrayUnion del token en fcmTokens
+ *   (y arrayRemove del token anterior de este dispositivo, si cambió).
+ * - Guarda metadatos por dispositivo en devices.{deviceId} (token, lastSeen, appVersion, modelo)
+ *   para poder podar en el servidor los dispositivos que dejaron de usarse.
+ * - Los mismos datos van a users/{uid}/devices/{deviceId}, con validatedAt: el barrido del servidor
+ *   consulta ahí solo los tokens sin renovar ni validar hace tiempo, sin recorrer todos los usuarios.
+ */
+public class TokenRegistrar {
+
+    private static final String TAG = "TokenRegistrar";
+    private static final String PREFS_NAME = "fcm_token_registrar";
+    private static final String KEY_DEVICE_ID = "deviceId";
+    private static final String KEY_TOKEN = "token";
+    private static final String KEY_USER_ID = "userId";
+    private static final String KEY_APP_VERSION = "appVersion";
+    private static final String KEY_REGISTERED_AT = "registeredAt";
+
+    public static final String FIELD_FCM_TOKENS = "fcmTokens";
+    public static final String FIELD_FCM_TOKEN = "fcmToken";
+    public static final String FIELD_DEVICES = "devices";
+    public static final String DEVICES_COLLECTION = "devices";
+    public static final String FIELD_VALIDATED_AT = "validatedAt";
+
+    // lastSeen se renueva aunque nada cambie, para que el servidor distinga dispositivos abandonados
+    static final long LAST_SEEN_REFRESH_DAYS = 7;
+
+    private TokenRegistrar() {
+    }
+
+    /**
+     * Registra el token para el usuario actual. Si ya estaba registrado tal cual, no hace nada.
+     */
+    public static void register(Context context, String token) {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null || token == null || token.isEmpty()) {
+            Log.w(TAG, "⚠️ Sin usuario o sin token, no se registra");
+            return;
+        }
+
+        SharedPreferences prefs = prefs(context);
+        String userId = user.getUid();
+        String appVersion = appVersion(context);
+        String previousToken = prefs.getString(KEY_TOKEN, null);
+        boolean sameRegistration = token.equals(previousToken)
+                && userId.equals(prefs.getString(KEY_USER_ID, null))
+                && Objects.equals(appVersion, prefs.getString(KEY_APP_VERSION, null));
+        long age = System.currentTimeMillis() - prefs.getLong(KEY_REGISTERED_AT, 0);
+        if (sameRegistration && age < TimeUnit.DAYS.toMillis(LAST_SEEN_REFRESH_DAYS)) {
+            Log.d(TAG, "Token ya registrado, sin escrituras");
+            return;
+        }
+
+        String deviceId = deviceId(prefs);
+        Map<String, Object> device = new HashMap<>();
+        device.put("token", token);
+        device.put("lastSeen", FieldValue.serverTimestamp());
+        device.put("appVersion", appVersion);
+        device.put("platform", "android");
+        device.put("model", Build.MANUFACTURER + " " + Build.MODEL);
+
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(FIELD_FCM_TOKENS, FieldValue.arrayUnion(token));
+        // Campo individual por compatibilidad con versiones anteriores
+        updates.put(FIELD_FCM_TOKEN, token);
+        updates.put(FIELD_DEVICES + "." + deviceId, device);
+        updates.put(UserCache.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+
+        DocumentReference userRef = FirebaseFirestore.getInstance().collection("users").document(userId);
+        // Registrar el token equivale a validarlo: el barrido del servidor lo revisa cuando deja de renovarse
+        Map<String, Object> deviceDoc = new HashMap<>(device);
+        deviceDoc.put(FIELD_VALIDATED_AT, FieldValue.serverTimestamp());
+
+        WriteBatch batch = FirebaseFirestore.getInstance().batch();
+        // Token anterior de este mismo dispositivo (rotado): se quita en el mismo lote
+        if (previousToken != null && !previousToken.equals(token) && userId.equals(prefs.getString(KEY_USER_ID, null))) {
+            batch.update(userRef, FIELD_FCM_TOKENS, FieldValue.arrayRemove(previousToken));
+        }
+        batch.update(userRef, updates);
+        batch.set(userRef.collection(DEVICES_COLLECTION).document(deviceId), deviceDoc);
+
+        batch.commit()
+                .addOnSuccessListener(unused -> {
+                    prefs.edit()
+                            .putString(KEY_TOKEN, token)
+                            .putString(KEY_USER_ID, userId)
+                            .putString(KEY_APP_VERSION, appVersion)
+                            .putLong(KEY_REGISTERED_AT, System.currentTimeMillis())
+                            .apply();
+                    Log.d(TAG, "✅ Token registrado para el dispositivo " + deviceId);
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "❌ Error registrando token", e));
+    }
+
+    /**
+     * Quita el token y el dispositivo del usuario actual (antes de cerrar sesión).
+     * Devuelve la tarea de la escritura: hay que esperarla antes de signOut, porque Firestore guarda las
+     * escrituras pendientes por usuario y las de un usuario que ya salió no se envían hasta que vuelva a entrar.
+     * Es una transacción: el campo individual fcmToken se borra solo si todavía es el token de este dispositivo.
+     */
+    public static Task<Void> unregister(Context context) {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        SharedPreferences prefs = prefs(context);
+        String token = prefs.getString(KEY_TOKEN, null);
+        if (user == null || token == null || !user.getUid().equals(prefs.getString(KEY_USER_ID, null))) {
+            return Tasks.forResult(null);
+        }
+
+        String deviceId = deviceId(prefs);
+        FirebaseFirestore database = FirebaseFirestore.getInstance();
+        DocumentReference userRef = database.collection("users").document(user.getUid());
+        DocumentReference deviceRef = userRef.collection(DEVICES_COLLECTION).document(deviceId);
+
+        // El próximo inicio de sesión vuelve a registrar
+        prefs.edit()
+                .remove(KEY_TOKEN)
+                .remove(KEY_USER_ID)
+                .remove(KEY_REGISTERED_AT)
+                .apply();
+
+        return database.runTransaction(transaction -> {
+            DocumentSnapshot userDoc = transaction.get(userRef);
+            if (!userDoc.exists()) {
+                transaction.delete(deviceRef);
+                return null;
+            }
+            Map<String, Object> updates = new HashMap<>();
+            updates.put(FIELD_FCM_TOKENS, FieldValue.arrayRemove(token));
+            updates.put(FIELD_DEVICES + "." + deviceId, FieldValue.delete());
+            // El campo individual puede ser de otro dispositivo del mismo usuario: solo se borra si es este
+            if (token.equals(userDoc.getString(FIELD_FCM_TOKEN))) {
+                updates.put(FIELD_FCM_TOKEN, FieldValue.delete());
+            }
+            updates.put(UserCache.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+            transaction.update(userRef, updates);
+            transaction.delete(deviceRef);
+            return null;
+        }).addOnSuccessListener(unused -> Log.d(TAG, "Token quitado del usuario"))
+                .addOnFailureListener(e -> Log.e(TAG, "❌ Error quitando token", e));
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Identificador de esta instalación (no cambia al rotar el token)
+    private static String deviceId(SharedPreferences prefs) {
+        String deviceId = prefs.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            prefs.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        return deviceId;
+    }
+
+    private static String appVersion(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "desconocida";
+        }
+    }
+}
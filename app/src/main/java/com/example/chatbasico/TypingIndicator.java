@@ -0,0 +1,155 @@
+package com.example.chatbasico;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+
+/**
+ * Indicador de "escribiendo…" de una conversación, en Realtime Database: typing/{conversationId}/{uid}.
+ * Es un dato efímero: no pasa por la colección de mensajes y se borra solo al desconectarse (onDisconnect).
+ * Envío con límite de frecuencia:
+ * - La primera tecla escribe al momento (flanco inicial).
+ * - Mientras se sigue escribiendo se renueva a lo sumo una vez cada {@link #REFRESH_MS}.
+ * - Sin teclas durante {@link #IDLE_TIMEOUT_MS}, al enviar o al vaciar el campo, se borra.
+ * Así cada persona escribiendo genera como máximo 1 + duración / REFRESH_MS + 1 escrituras.
+ * Recepción: el indicador del otro se oculta solo si no se renueva en {@link #STALE_MS}
+ * (por si su borrado nunca llega).
+ * Se usa solo desde el hilo principal.
+ */
+public class TypingIndicator {
+
+    private static final String TAG = "TypingIndicator";
+
+    private static final String TYPING_PATH = "typing";
+    private static final String FIELD_AT = "at";
+
+    static final long REFRESH_MS = 4_000;
+    static final long IDLE_TIMEOUT_MS = 5_000;
+    static final long STALE_MS = REFRESH_MS * 2;
+
+    public interface Listener {
+        void onTypingChanged(boolean typing);
+    }
+
+    private final DatabaseReference ownRef;
+    private final DatabaseReference otherRef;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleRunnable = this::stopTyping;
+    private final Runnable staleRunnable = () -> setOtherTyping(false);
+
+    private boolean typing = false;
+    private long lastWriteAt = 0;
+    private int writeCount = 0;
+    private long keystrokeCount = 0;
+
+    private Listener listener;
+    private boolean otherTyping = false;
+    private final ValueEventListener otherListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(@NonNull DataSnapshot snapshot) {
+            boolean exists = snapshot.exists();
+            setOtherTyping(exists);
+            handler.removeCallbacks(staleRunnable);
+            if (exists) {
+                handler.postDelayed(staleRunnable, STALE_MS);
+            }
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+            Log.e(TAG, "Indicador de escritura cancelado: " + error.getMessage());
+        }
+    };
+
+    public TypingIndicator(String conversationId, String currentUserId, String otherUserId) {
+        DatabaseReference conversationRef = FirebaseDatabase.getInstance()
+                .getReference(TYPING_PATH)
+                .child(conversationId);
+        this.ownRef = conversationRef.child(currentUserId);
+        this.otherRef = conversationRef.child(otherUserId);
+    }
+
+    /**
+     * Avisar de cada cambio del texto escrito; vacío equivale a dejar de escribir.
+     */
+    public void onTextChanged(CharSequence text) {
+        if (text == null || text.toString().trim().isEmpty()) {
+            stopTyping();
+            return;
+        }
+        keystrokeCount++;
+
+        long now = System.currentTimeMillis();
+        if (!typing || now - lastWriteAt >= REFRESH_MS) {
+            if (!typing) {
+                // Si la app se cierra o pierde la red, el servidor lo borra
+                ownRef.onDisconnect().removeValue();
+            }
+            typing = true;
+            lastWriteAt = now;
+            writeCount++;
+            ownRef.child(FIELD_AT).setValue(ServerValue.TIMESTAMP);
+        }
+
+        // Timeout final: se reinicia con cada tecla
+        handler.removeCallbacks(idleRunnable);
+        handler.postDelayed(idleRunnable, IDLE_TIMEOUT_MS);
+    }
+
+    // Dejar de mostrar "escribiendo…" al otro (mensaje enviado, campo vacío o inactividad)
+    public void stopTyping() {
+        handler.removeCallbacks(idleRunnable);
+        if (!typing) {
+            return;
+        }
+        typing = false;
+        writeCount++;
+        ownRef.removeValue();
+        ownRef.onDisconnect().cancel();
+    }
+
+    /**
+     * Empieza a escuchar si el otro usuario está escribiendo.
+     */
+    public void listen(Listener listener) {
+        this.listener = listener;
+        otherRef.addValueEventListener(otherListener);
+    }
+
+    public void stopListening() {
+        otherRef.removeEventListener(otherListener);
+        handler.removeCallbacks(staleRunnable);
+        setOtherTyping(false);
+        listener = null;
+    }
+
+    // Escrituras hechas al backend desde que se creó (para medir el costo por persona escribiendo)
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    public void release() {
+        stopTyping();
+        stopListening();
+        Log.d(TAG, "Indicador de escritura: " + writeCount + " escrituras para " + keystrokeCount + " cambios de texto");
+    }
+
+    private void setOtherTyping(boolean typing) {
+        if (otherTyping == typing) {
+            return;
+        }
+        otherTyping = typing;
+        if (listener != null) {
+            listener.onTypingChanged(typing);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.chatbasico;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caché local de los usuarios del directorio que ya se descargaron (búsquedas y páginas vistas).
+ * Permite mostrar el directorio al instante y sin conexión.
+ * Para mantenerla al día no se vuelve a descargar: cada usuario tiene un updatedAt del servidor
+ * (campo que se actualiza con cada cambio de perfil o de token) y {@link #sync} pide solo los usuarios
+ * guardados con updatedAt posterior a una marca global: el mayor updatedAt recibido en una sincronización.
+ * Límite conocido: un usuario borrado en el servidor no se quita de la caché (la app no borra usuarios;
+ * si llegara a hacerlo, haría falta una marca de borrado con updatedAt para que la sincronización la vea).
+ * Todas las operaciones se hacen en un hilo de fondo; los resultados se entregan en el hilo principal.
+ */
+public class UserCache {
+
+    private static final String TAG = "UserCache";
+
+    public static final String FIELD_UPDATED_AT = "updatedAt";
+
+    private static final String PREFS_NAME = "user_cache";
+    // Mayor updatedAt (en microsegundos) recibido en una sincronización
+    private static final String KEY_SYNC_WATERMARK = "sync_watermark_micros";
+
+    // Máximo de IDs por consulta whereIn en Firestore
+    private static final int SYNC_CHUNK_SIZE = 30;
+
+    public interface LoadCallback {
+        void onLoaded(List<MainChats.Usuario> usuarios);
+    }
+
+    public interface SyncCallback {
+        // Usuarios que cambiaron en el servidor desde la última sincronización (puede estar vacía)
+        void onSynced(List<MainChats.Usuario> changed);
+    }
+
+    private static UserCache instance;
+
+    private final ChatDatabase database;
+    private final SharedPreferences prefs;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized UserCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new UserCache(ChatDatabase.getInstance(context),
+                    context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    private UserCache(ChatDatabase database, SharedPreferences prefs) {
+        this.database = database;
+        this.prefs = prefs;
+    }
+
+    /**
+     * Usuarios guardados cuyo nombre o email empieza con el texto (todos si está vacío), ordenados por nombre.
+     */
+    public void search(String query, String excludeUserId, int limit, LoadCallback callback) {
+        String prefix = UserDirectory.normalize(query);
+        executor.execute(() -> {
+            List<MainChats.Usuario> result = new ArrayList<>();
+            // LIKE sin comodines del usuario: se escapan % y _
+            String pattern = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+            String selection = "(" + ChatDatabase.COL_USER_NOMBRE_LOWER + " LIKE ? ESCAPE '\\' OR "
+                    + ChatDatabase.COL_USER_EMAIL_LOWER + " LIKE ? ESCAPE '\\') AND "
+                    + ChatDatabase.COL_USER_ID + " != ?";
+            String[] args = new String[]{pattern, pattern, excludeUserId != null ? excludeUserId : ""};
+
+            try (Cursor cursor = database.getReadableDatabase().query(ChatDatabase.TABLE_USERS, null,
+                    selection, args, null, null, ChatDatabase.COL_USER_NOMBRE_LOWER, String.valueOf(limit))) {
+                int idIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_USER_ID);
+                int nombreIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_USER_NOMBRE);
+                int emailIdx = cursor.getColumnIndexOrThrow(ChatDatabase.COL_USER_EMAIL);
+                while (cursor.moveToNext()) {
+                    MainChats.Usuario usuario = new MainChats.Usuario();
+                    usuario.id = cursor.getString(idIdx);
+                    usuario.nombre = cursor.getString(nombreIdx);
+                    usuario.email = cursor.getString(emailIdx);
+                    result.add(usuario);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error leyendo usuarios guardados", e);
+            }
+            mainHandler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Guarda (o reemplaza) los documentos de usuarios recibidos de Firestore.
+     */
+    public void saveDocuments(List<DocumentSnapshot> documents) {
+        // Extraer los valores en el hilo actual; los snapshots no se comparten entre hilos
+        List<ContentValues> rows = new ArrayList<>(documents.size());
+        for (DocumentSnapshot document : documents) {
+            rows.add(toContentValues(document));
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        executor.execute(() -> {
+            SQLiteDatabase db = database.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues values : rows) {
+                    db.insertWithOnConflict(ChatDatabase.TABLE_USERS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error guardando usuarios", e);
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    /**
+     * Pide al servidor solo los usuarios guardados que cambiaron después de la marca global:
+     * whereIn(IDs, de a {@value #SYNC_CHUNK_SIZE}) + updatedAt mayor que la marca. Así solo se descargan
+     * usuarios que ya están en la caché, y con la caché al día cada consulta vuelve vacía.
+     * La marca avanza al mayor updatedAt recibido, y solo si todas las consultas salieron bien.
+     */
+    public void sync(CollectionReference usersRef, SyncCallback callback) {
+        executor.execute(() -> {
+            List<String> ids = loadCachedIds();
+            long watermark = ids.isEmpty() ? -1 : loadWatermark();
+            mainHandler.post(() -> runSync(usersRef, ids, watermark, callback));
+        });
+    }
+
+    private void runSync(CollectionReference usersRef, List<String> ids, long watermark, SyncCallback callback) {
+        if (ids.isEmpty()) {
+            // Caché vacía: no hay nada que mantener al día
+            callback.onSynced(new ArrayList<>());
+            return;
+        }
+
+        Timestamp since = MessageStore.fromMicros(watermark);
+        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += SYNC_CHUNK_SIZE) {
+            tasks.add(usersRef.whereIn(FieldPath.documentId(), ids.subList(start, Math.min(start + SYNC_CHUNK_SIZE, ids.size())))
+                    .whereGreaterThan(FIELD_UPDATED_AT, since)
+                    .get());
+        }
+
+        Log.d(TAG, "Sincronizando " + ids.size() + " usuarios guardados cambiados después de " + since.toDate());
+
+        Tasks.whenAllComplete(tasks).addOnCompleteListener(done -> {
+            List<DocumentSnapshot> changed = new ArrayList<>();
+            boolean complete = true;
+            for (Task<QuerySnapshot> task : tasks) {
+                if (task.isSuccessful() && task.getResult() != null) {
+                    changed.addAll(task.getResult().getDocuments());
+                } else {
+                    // La marca no avanza: el grupo se vuelve a pedir desde la misma marca
+                    complete = false;
+                    Log.e(TAG, "Error sincronizando usuarios", task.getException());
+                }
+            }
+
+            Log.d(TAG, "Usuarios cambiados desde la última sincronización: " + changed.size());
+            saveDocuments(changed);
+
+            long newest = watermark;
+            List<MainChats.Usuario> usuarios = new ArrayList<>(changed.size());
+            for (DocumentSnapshot document : changed) {
+                Timestamp updatedAt = document.getTimestamp(FIELD_UPDATED_AT);
+                if (updatedAt != null) {
+                    newest = Math.max(newest, MessageStore.toMicros(updatedAt));
+                }
+                MainChats.Usuario usuario = MainChats.Usuario.fromDocument(document);
+                if (usuario != null) {
+                    usuarios.add(usuario);
+                }
+            }
+            if (complete && newest > watermark) {
+                prefs.edit().putLong(KEY_SYNC_WATERMARK, newest).apply();
+            }
+            callback.onSynced(usuarios);
+        });
+    }
+
+    private List<String> loadCachedIds() {
+        List<String> result = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(ChatDatabase.TABLE_USERS,
+                new String[]{ChatDatabase.COL_USER_ID}, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error leyendo usuarios guardados", e);
+        }
+        return result;
+    }
+
+    // Marca guardada; la primera vez, el menor updatedAt de la caché. Cada fila se guardó después de su
+    // updatedAt, así que ningún cambio posterior a que se guardó queda antes de la marca. Corre en el executor
+    private long loadWatermark() {
+        if (prefs.contains(KEY_SYNC_WATERMARK)) {
+            return prefs.getLong(KEY_SYNC_WATERMARK, 0);
+        }
+        long watermark = 0;
+        try (Cursor cursor = database.getReadableDatabase().rawQuery("SELECT MIN("
+                + ChatDatabase.COL_USER_UPDATED_AT_MICROS + ") FROM " + ChatDatabase.TABLE_USERS, null)) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                watermark = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error leyendo usuarios guardados", e);
+        }
+        prefs.edit().putLong(KEY_SYNC_WATERMARK, watermark).apply();
+        return watermark;
+    }
+
+    private ContentValues toContentValues(DocumentSnapshot document) {
+        String nombre = document.getString("nombre");
+        String email = document.getString("email");
+        Timestamp updatedAt = document.getTimestamp(FIELD_UPDATED_AT);
+
+        ContentValues values = new ContentValues();
+        values.put(ChatDatabase.COL_USER_ID, document.getId());
+        values.put(ChatDatabase.COL_USER_NOMBRE, nombre);
+        values.put(ChatDatabase.COL_USER_EMAIL, email);
+        values.put(ChatDatabase.COL_USER_NOMBRE_LOWER, UserDirectory.normalize(nombre));
+        values.put(ChatDatabase.COL_USER_EMAIL_LOWER, UserDirectory.normalize(email));
+        // Sin updatedAt (usuario anterior al campo) queda en 0: llega en una sincronización cuando lo tenga
+        values.put(ChatDatabase.COL_USER_UPDATED_AT_MICROS, updatedAt != null ? MessageStore.toMicros(updatedAt) : 0);
+        return values;
+    }
+}
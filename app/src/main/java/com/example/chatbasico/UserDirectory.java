@@ -0,0 +1,220 @@
+package com.example.chatbasico;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directorio de usuarios con búsqueda por prefijo sobre nombre y email.
+ * Cada búsqueda son consultas de rango paginadas sobre campos normalizados (nombreLower, emailLower)
+ * que se escriben al registrarse: nunca se descarga la colección users completa.
+ * - Sin texto se recorre el directorio por nombre, página a página.
+ * - Con texto se consulta el prefijo en nombre y en email y se juntan los resultados sin repetir.
+ * Las respuestas de una búsqueda ya reemplazada se descartan; los usuarios descargados se guardan en {@link UserCache}.
+ */
+public class UserDirectory {
+
+    private static final String TAG = "UserDirectory";
+
+    public static final int PAGE_SIZE = 20;
+
+    public static final String FIELD_NOMBRE_LOWER = "nombreLower";
+    public static final String FIELD_EMAIL_LOWER = "emailLower";
+
+    // Último carácter del plano básico: startAt(p).endAt(p + END_OF_PREFIX) cubre todo lo que empieza con p
+    private static final String END_OF_PREFIX = "\uf8ff";
+
+    public interface Callback {
+        /**
+         * @param reset   true si es la primera página de una búsqueda nueva (reemplaza la lista)
+         * @param hasMore si quedan más resultados por pedir con {@link #loadMore()}
+         */
+        void onResults(List<MainChats.Usuario> usuarios, boolean reset, boolean hasMore);
+
+        void onError(Exception e);
+    }
+
+    // Posición de la paginación en una de las consultas (nombre o email)
+    private static class Cursor {
+        final String field;
+        DocumentSnapshot last;
+        boolean hasMore = true;
+
+        Cursor(String field) {
+            this.field = field;
+        }
+    }
+
+    private final CollectionReference usersRef;
+    private final String currentUserId;
+    private final UserCache userCache;
+    private final Callback callback;
+
+    private final List<Cursor> cursors = new ArrayList<>();
+    private final Set<String> shownIds = new HashSet<>();
+    private String prefix = "";
+    private int generation = 0;
+    private boolean loading = false;
+
+    public UserDirectory(CollectionReference usersRef, String currentUserId, UserCache userCache, Callback callback) {
+        this.usersRef = usersRef;
+        this.currentUserId = currentUserId;
+        this.userCache = userCache;
+        this.callback = callback;
+    }
+
+    /**
+     * Minúsculas, sin tildes y sin espacios al borde: "  Ñandú " -> "nandu".
+     */
+    public static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(value.trim(), Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}+", "").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Campos de búsqueda que acompañan a nombre y email en users/{uid}.
+     */
+    public static Map<String, Object> searchFields(String nombre, String email) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(FIELD_NOMBRE_LOWER, normalize(nombre));
+        fields.put(FIELD_EMAIL_LOWER, normalize(email));
+        return fields;
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    public boolean hasMore() {
+        for (Cursor cursor : cursors) {
+            if (cursor.hasMore) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empieza una búsqueda nueva; la primera página llega con reset = true.
+     */
+    public void search(String query) {
+        prefix = normalize(query);
+        generation++;
+        loading = false;
+        shownIds.clear();
+        cursors.clear();
+        cursors.add(new Cursor(FIELD_NOMBRE_LOWER));
+        if (!prefix.isEmpty()) {
+            cursors.add(new Cursor(FIELD_EMAIL_LOWER));
+        }
+        loadPage(true);
+    }
+
+    // Pide la siguiente página de la búsqueda actual
+    public void loadMore() {
+        if (loading || !hasMore()) {
+            return;
+        }
+        loadPage(false);
+    }
+
+    private void loadPage(boolean reset) {
+        loading = true;
+        int requestGeneration = generation;
+
+        List<Cursor> pending = new ArrayList<>();
+        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
+        for (Cursor cursor : cursors) {
+            if (cursor.hasMore) {
+                pending.add(cursor);
+                tasks.add(queryFor(cursor).get());
+            }
+        }
+
+        Log.d(TAG, "Buscando \"" + prefix + "\" (" + tasks.size() + " consultas, página nueva: " + reset + ")");
+
+        Tasks.whenAllComplete(tasks).addOnCompleteListener(done -> {
+            // La búsqueda cambió mientras tanto
+            if (requestGeneration != generation) {
+                return;
+            }
+            loading = false;
+
+            List<MainChats.Usuario> page = new ArrayList<>();
+            Exception error = null;
+            for (int i = 0; i < tasks.size(); i++) {
+                Task<QuerySnapshot> task = tasks.get(i);
+                Cursor cursor = pending.get(i);
+                if (!task.isSuccessful() || task.getResult() == null) {
+                    error = task.getException();
+                    cursor.hasMore = false;
+                    continue;
+                }
+
+                List<DocumentSnapshot> documents = task.getResult().getDocuments();
+                // Lo que se descarga queda en la caché local (ver UserCache)
+                userCache.saveDocuments(documents);
+                cursor.hasMore = documents.size() == PAGE_SIZE;
+                if (!documents.isEmpty()) {
+                    cursor.last = documents.get(documents.size() - 1);
+                }
+                for (DocumentSnapshot document : documents) {
+                    MainChats.Usuario usuario = toUsuario(document);
+                    if (usuario != null && shownIds.add(document.getId())) {
+                        page.add(usuario);
+                    }
+                }
+            }
+
+            // Los resultados de nombre y email se intercalan por nombre
+            page.sort((a, b) -> normalize(a.nombre).compareTo(normalize(b.nombre)));
+
+            if (page.isEmpty() && error != null) {
+                Log.e(TAG, "Error buscando usuarios", error);
+                callback.onError(error);
+                return;
+            }
+            Log.d(TAG, "Página con " + page.size() + " usuarios, quedan más: " + hasMore());
+            callback.onResults(page, reset, hasMore());
+        });
+    }
+
+    private Query queryFor(Cursor cursor) {
+        Query query = usersRef.orderBy(cursor.field);
+        // Solo vale un límite inicial: el cursor de la página anterior reemplaza al prefijo
+        if (cursor.last != null) {
+            query = query.startAfter(cursor.last);
+        } else if (!prefix.isEmpty()) {
+            query = query.startAt(prefix);
+        }
+        if (!prefix.isEmpty()) {
+            query = query.endAt(prefix + END_OF_PREFIX);
+        }
+        return query.limit(PAGE_SIZE);
+    }
+
+    private MainChats.Usuario toUsuario(DocumentSnapshot document) {
+        // No mostrar el usuario actual en la lista
+        if (document.getId().equals(currentUserId)) {
+            return null;
+        }
+        return MainChats.Usuario.fromDocument(document);
+    }
+}
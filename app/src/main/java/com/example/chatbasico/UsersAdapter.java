@@ -5,23 +5,38 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
-import java.util.List;
+import java.util.Objects;
+
+public class UsersAdapter extends ListAdapter<MainChats.Usuario, UsersAdapter.UserViewHolder> {
 
-public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHolder> {
-    
-    private List<MainChats.Usuario> usuarios;
     private OnUserClickListener listener;
-    
+
     public interface OnUserClickListener {
         void onUserClick(MainChats.Usuario usuario);
     }
-    
-    public UsersAdapter(List<MainChats.Usuario> usuarios, OnUserClickListener listener) {
-        this.usuarios = usuarios;
+
+    // Los cambios de la caché y de la red se aplican como diferencias, no recargando toda la lista
+    private static final DiffUtil.ItemCallback<MainChats.Usuario> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<MainChats.Usuario>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull MainChats.Usuario oldItem, @NonNull MainChats.Usuario newItem) {
+                    return Objects.equals(oldItem.id, newItem.id);
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull MainChats.Usuario oldItem, @NonNull MainChats.Usuario newItem) {
+                    return oldItem.sameContentAs(newItem);
+                }
+            };
+
+    public UsersAdapter(OnUserClickListener listener) {
+        super(DIFF_CALLBACK);
         this.listener = listener;
     }
-    
+
     @NonNull
     @Override
     public UserViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -29,33 +44,78 @@ public class UsersAdapter extends RecyclerView.Adapter<UsersAdapter.UserViewHold
                 .inflate(R.layout.item_user, parent, false);
         return new UserViewHolder(view);
     }
-    
+
     @Override
     public void onBindViewHolder(@NonNull UserViewHolder holder, int position) {
-        MainChats.Usuario usuario = usuarios.get(position);
+        MainChats.Usuario usuario = getItem(position);
         holder.bind(usuario);
     }
-    
+
+    // La presencia se observa solo mientras la fila está en pantalla, no en cada bind.
+    // PresenceManager comparte una suscripción por usuario entre todos sus observadores.
     @Override
-    public int getItemCount() {
-        return usuarios.size();
+    public void onViewAttachedToWindow(@NonNull UserViewHolder holder) {
+        holder.observePresence();
     }
-    
-    class UserViewHolder extends RecyclerView.ViewHolder {
+
+    @Override
+    public void onViewDetachedFromWindow(@NonNull UserViewHolder holder) {
+        holder.stopObservingPresence();
+    }
+
+    class UserViewHolder extends RecyclerView.ViewHolder implements PresenceManager.Listener {
         TextView textNombre;
-        
+        TextView textPresence;
+        String userId;
+        String observedUserId;
+
         UserViewHolder(@NonNull View itemView) {
             super(itemView);
             textNombre = itemView.findViewById(R.id.textNombre);
+            textPresence = itemView.findViewById(R.id.textPresence);
         }
-        
+
         void bind(MainChats.Usuario usuario) {
             textNombre.setText(usuario.nombre);
+            if (!Objects.equals(userId, usuario.id)) {
+                userId = usuario.id;
+                textPresence.setVisibility(View.GONE);
+                // Rebind de una fila visible con otro usuario (DiffUtil): cambiar la suscripción
+                if (observedUserId != null) {
+                    stopObservingPresence();
+                    observePresence();
+                }
+            }
             itemView.setOnClickListener(v -> {
                 if (listener != null) {
                     listener.onUserClick(usuario);
                 }
             });
         }
+
+        void observePresence() {
+            if (userId == null || userId.equals(observedUserId)) {
+                return;
+            }
+            observedUserId = userId;
+            PresenceManager.getInstance().observe(userId, this);
+        }
+
+        void stopObservingPresence() {
+            if (observedUserId != null) {
+                PresenceManager.getInstance().removeObserver(observedUserId, this);
+                observedUserId = null;
+            }
+        }
+
+        @Override
+        public void onPresenceChanged(String userId, PresenceManager.Presence presence) {
+            // La fila pudo pasar a otro usuario antes de que llegara el cambio
+            if (!userId.equals(this.userId)) {
+                return;
+            }
+            textPresence.setText(PresenceManager.describe(presence));
+            textPresence.setVisibility(View.VISIBLE);
+        }
     }
-}
\ No newline at end of file
+}
@@ -5,6 +5,8 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
@@ -17,6 +19,7 @@ import android.widget.Toast;
 import androidx.activity.EdgeToEdge;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -26,32 +29,47 @@ import androidx.core.view.WindowInsetsCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import com.google.firebase.Timestamp;
 import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FirebaseFirestoreException;
-import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
+import com.google.firebase.firestore.WriteBatch;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import android.view.inputmethod.EditorInfo;
 import android.view.KeyEvent;
 public class chats extends AppCompatActivity {
 
     private static final String TAG = "ChatsActivity";
     private static final int PERMISSION_REQUEST_CODE = 100;
+    // Posiciones desde cada extremo de la lista a partir de las cuales se pide otra página
+    private static final int LOAD_PAGE_THRESHOLD = 5;
 
     // Variables de la interfaz
     private TextView textUsername;
+    private TextView textPresence;
+
+    // Indicador de "escribiendo…" (Realtime Database, con límite de escrituras)
+    private TypingIndicator typingIndicator;
+    private PresenceManager.Presence receiverPresence;
+    private boolean receiverTyping = false;
     private ImageView imageSignOut;
     private RecyclerView conversationRecyclerView;
     private EditText chatMessageInput;
@@ -65,21 +83,46 @@ public class chats extends AppCompatActivity {
     private String currentUserName;
     private String conversationId;
 
+    // Ancla opcional para abrir la conversación en un punto concreto
+    private String anchorMessageId;
+    private long anchorTimestamp;
+
     // Firebase
     private FirebaseAuth mAuth;
     private FirebaseFirestore database;
-    private FirebaseStorage storage;
-    private StorageReference storageReference;
 
-    // Adaptador y lista de mensajes
-    private List<Message> messages;
+    // Adaptador; las filas se arman fuera del hilo principal con rowFactory
     private ChatAdapter chatAdapter;
+    private MessageRowFactory rowFactory;
+    private ChatViewPool viewPool;
+    // Filas por tipo de vista que se pre-inflan al abrir la conversación
+    private static final int ROW_WARM_UP_PER_TYPE = ChatViewPool.DEFAULT_WARM_UP_PER_TYPE;
+    // Filas por delante del scroll cuyas imágenes se precargan (más o menos una pantalla)
+    private static final int IMAGE_PRELOAD_ROWS = 8;
 
     // Para seleccionar imágenes
     private ActivityResultLauncher<Intent> imagePickerLauncher;
 
-    // Listener registration
-    private ListenerRegistration messageListener;
+    // Paginación de mensajes
+    private MessagePager messagePager;
+    // Hilo en el que se reciben y decodifican los snapshots de mensajes
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+    // Hilo en el que se reducen y recodifican las imágenes antes de subirlas
+    private final ExecutorService imageEncodeExecutor = Executors.newSingleThreadExecutor();
+    private ImageEncoder imageEncoder;
+    private ImageUploadQueue imageUploadQueue;
+
+    // Mensajes de texto enviados en ráfaga: se agrupan durante esta ventana (0 = enviar cada uno al momento)
+    private static final long SEND_BATCH_WINDOW_MS = MessageSendBatcher.DEFAULT_WINDOW_MS;
+    private MessageSendBatcher sendBatcher;
+
+    // Almacén local de mensajes (solo se usa al abrir por el final de la conversación)
+    private MessageStore messageStore;
+    private boolean persistToStore = false;
+    private boolean storeHasOlder = false;
+    private boolean loadingOlderFromStore = false;
+    private Timestamp oldestShownTimestamp;
+    private String oldestShownId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -95,8 +138,9 @@ public class chats extends AppCompatActivity {
         // Inicializar Firebase
         mAuth = FirebaseAuth.getInstance();
         database = FirebaseFirestore.getInstance();
-        storage = FirebaseStorage.getInstance();
-        storageReference = storage.getReference();
+        imageEncoder = new ImageEncoder(getContentResolver());
+        imageUploadQueue = new ImageUploadQueue(this);
+        messageStore = MessageStore.getInstance(this);
 
         // Inicializar selector de imágenes
         initImagePicker();
@@ -115,6 +159,9 @@ public class chats extends AppCompatActivity {
 
         // Cargar mensajes
         loadMessages();
+        observeImageUploads();
+        setupSendBatcher();
+        setupTypingIndicator();
     }
 
     private void getIntentData() {
@@ -122,6 +169,8 @@ public class chats extends AppCompatActivity {
         receiverUserId = intent.getStringExtra("usuario_id");
         receiverUserName = intent.getStringExtra("usuario_seleccionado");
         currentUserName = intent.getStringExtra("current_user_name");
+        anchorMessageId = intent.getStringExtra("anchor_message_id");
+        anchorTimestamp = intent.getLongExtra("anchor_timestamp", 0);
 
         if (mAuth.getCurrentUser() != null) {
             currentUserId = mAuth.getCurrentUser().getUid();
@@ -140,6 +189,7 @@ public class chats extends AppCompatActivity {
 
     private void initViews() {
         textUsername = findViewById(R.id.textUsername);
+        textPresence = findViewById(R.id.textPresence);
         imageSignOut = findViewById(R.id.imageSignOut);
         conversationRecyclerView = findViewById(R.id.conversationRecyclerView);
         chatMessageInput = findViewById(R.id.chat_message_input);
@@ -153,15 +203,56 @@ public class chats extends AppCompatActivity {
     }
 
     private void setupRecyclerView() {
-        messages = new ArrayList<>();
-        chatAdapter = new ChatAdapter(messages, currentUserId);
+        rowFactory = new MessageRowFactory(currentUserId);
+        viewPool = ChatViewPool.getInstance(this);
+        RequestManager glide = Glide.with(this);
+        chatAdapter = new ChatAdapter(viewPool, glide);
 
         LinearLayoutManager layoutManager = new LinearLayoutManager(this);
         layoutManager.setStackFromEnd(true); // Para que los mensajes nuevos aparezcan abajo
+        // Al cerrar la pantalla las filas vuelven al pool compartido para la próxima conversación
+        layoutManager.setRecycleChildrenOnDetach(true);
 
         conversationRecyclerView.setLayoutManager(layoutManager);
         conversationRecyclerView.setAdapter(chatAdapter);
+        // El pool se asigna después del adaptador: setAdapter vacía el pool si no hay otro adaptador enganchado
+        conversationRecyclerView.setRecycledViewPool(viewPool.getRecycledViewPool());
         conversationRecyclerView.setVisibility(View.VISIBLE);
+
+        // Precargar las imágenes de la siguiente pantalla en la dirección del scroll
+        conversationRecyclerView.addOnScrollListener(
+                new RecyclerViewPreloader<>(glide, chatAdapter, chatAdapter, IMAGE_PRELOAD_ROWS));
+
+        // Durante un fling no se empiezan descargas/decodificaciones; se retoman al frenar
+        conversationRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                    glide.pauseRequests();
+                } else if (glide.isPaused()) {
+                    glide.resumeRequests();
+                }
+            }
+        });
+
+        // Mientras se cargan los mensajes, inflar en segundo plano las filas que falten
+        viewPool.warmUp(conversationRecyclerView, ROW_WARM_UP_PER_TYPE);
+
+        // Pedir otra página cuando el usuario se acerca a un extremo de lo cargado
+        conversationRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (messagePager == null) {
+                    return;
+                }
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() <= LOAD_PAGE_THRESHOLD) {
+                    loadOlderMessages();
+                } else if (dy > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= chatAdapter.getItemCount() - 1 - LOAD_PAGE_THRESHOLD) {
+                    messagePager.loadNewer();
+                }
+            }
+        });
     }
 
     private void setListeners() {
@@ -173,6 +264,24 @@ public class chats extends AppCompatActivity {
             finish(); // Regresar a la pantalla anterior
         });
 
+        // Avisar que se está escribiendo; TypingIndicator limita cuántas veces se escribe al backend
+        chatMessageInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (typingIndicator != null) {
+                    typingIndicator.onTextChanged(s);
+                }
+            }
+        });
+
         // También permitir enviar mensaje con Enter
         chatMessageInput.setOnEditorActionListener((v, actionId, event) -> {
             if (actionId == EditorInfo.IME_ACTION_SEND ||
@@ -191,57 +300,269 @@ public class chats extends AppCompatActivity {
             return;
         }
 
-        // Remover listener anterior si existe
-        if (messageListener != null) {
-            messageListener.remove();
+        // Detener el paginador anterior si existe
+        if (messagePager != null) {
+            messagePager.stop();
         }
 
         Log.d(TAG, "Cargando mensajes para conversación: " + conversationId);
 
-        // Crear nuevo listener y guardarlo
-        messageListener = database.collection("conversations")
-                .document(conversationId)
-                .collection("messages")
-                .orderBy("timestamp", Query.Direction.ASCENDING)
-                .addSnapshotListener(new EventListener<QuerySnapshot>() {
+        // Solo se escucha en vivo la ventana de los últimos mensajes; el historial se pide por páginas.
+        // Los snapshots llegan en un hilo de fondo: ahí se decodifican y se publica un solo cambio por snapshot.
+        messagePager = new MessagePager(
+                database.collection("conversations")
+                        .document(conversationId)
+                        .collection("messages"),
+                MessagePager.DEFAULT_PAGE_SIZE,
+                snapshotExecutor,
+                new MessagePager.Callback() {
                     @Override
-                    public void onEvent(QuerySnapshot value, FirebaseFirestoreException error) {
-                        if (error != null) {
-                            Log.e(TAG, "Error al escuchar mensajes", error);
-                            return;
+                    public void onLiveSnapshot(QuerySnapshot value) {
+                        List<DocumentChange> changes = value.getDocumentChanges();
+                        Log.d(TAG, "Cambios en mensajes detectados: " + changes.size());
+
+                        List<MessageRow> added = new ArrayList<>();
+                        List<MessageRow> modified = new ArrayList<>();
+                        List<String> removedIds = new ArrayList<>();
+                        List<DocumentSnapshot> toStore = new ArrayList<>();
+                        boolean sentByMe = false;
+
+                        for (DocumentChange documentChange : changes) {
+                            DocumentSnapshot document = documentChange.getDocument();
+
+                            switch (documentChange.getType()) {
+                                case ADDED:
+                                    MessageRow row = toRow(document);
+                                    added.add(row);
+                                    toStore.add(document);
+                                    sentByMe |= row.viewType == ChatAdapter.VIEW_TYPE_SENT_TEXT
+                                            || row.viewType == ChatAdapter.VIEW_TYPE_SENT_IMAGE;
+                                    break;
+                                case MODIFIED:
+                                    // Edición o timestamp del servidor ya asignado: se actualiza solo esa fila
+                                    modified.add(toRow(document));
+                                    toStore.add(document);
+                                    break;
+                                case REMOVED:
+                                    // Un mensaje que sale de la ventana en vivo sigue existiendo; no se quita
+                                    if (!messagePager.isWindowSlide(value, documentChange)) {
+                                        removedIds.add(document.getId());
+                                    }
+                                    break;
+                            }
                         }
 
-                        if (value != null) {
-                            Log.d(TAG, "Cambios en mensajes detectados");
-
-                            for (DocumentChange documentChange : value.getDocumentChanges()) {
-                                if (documentChange.getType() == DocumentChange.Type.ADDED) {
-                                    Message message = documentChange.getDocument().toObject(Message.class);
-                                    message.setId(documentChange.getDocument().getId());
-
-                                    Log.d(TAG, "Nuevo mensaje: " + message.getText());
-                                    chatAdapter.addMessage(message);
+                        if (persistToStore) {
+                            messageStore.saveDocuments(conversationId, toStore);
+                            for (String removedId : removedIds) {
+                                messageStore.deleteMessage(conversationId, removedId);
+                            }
+                        }
 
+                        boolean scrollForOwnMessage = sentByMe;
+                        runOnUiThread(() -> {
+                            if (isDestroyed()) {
+                                return;
+                            }
+                            // Solo bajar automáticamente si el usuario ya estaba al final (o si envió él)
+                            boolean follow = scrollForOwnMessage || isAtBottom();
+                            chatAdapter.applyChanges(added, modified, removedIds, () -> {
+                                if (follow && !added.isEmpty()) {
                                     conversationRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
                                 }
-                            }
+                            });
+                        });
+                    }
+
+                    @Override
+                    public void onOlderPage(List<DocumentSnapshot> documents, boolean hasMore) {
+                        List<MessageRow> olderRows = toRows(documents);
+                        if (persistToStore) {
+                            messageStore.saveDocuments(conversationId, documents);
                         }
+                        runOnUiThread(() -> chatAdapter.addMessagesAtStart(olderRows));
+                    }
+
+                    @Override
+                    public void onAnchorWindow(List<DocumentSnapshot> documents, int anchorIndex) {
+                        List<MessageRow> window = toRows(documents);
+                        // Mostrar el mensaje ancla arriba de la pantalla
+                        runOnUiThread(() -> chatAdapter.addMessagesAtEnd(window, () ->
+                                ((LinearLayoutManager) conversationRecyclerView.getLayoutManager())
+                                        .scrollToPositionWithOffset(anchorIndex, 0)));
+                    }
+
+                    @Override
+                    public void onNewerPage(List<DocumentSnapshot> documents, boolean hasMore) {
+                        List<MessageRow> newerRows = toRows(documents);
+                        runOnUiThread(() -> chatAdapter.addMessagesAtEnd(newerRows));
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(TAG, "Error al escuchar mensajes", e);
                     }
                 });
+
+        // Abrir en un mensaje concreto (notificación, búsqueda) o en una fecha (primer no leído).
+        // Las ventanas ancla no se guardan localmente para que el almacén no tenga huecos.
+        if (anchorMessageId != null) {
+            Log.d(TAG, "Abriendo conversación en el mensaje: " + anchorMessageId);
+            messagePager.startAtMessage(anchorMessageId);
+        } else if (anchorTimestamp > 0) {
+            Log.d(TAG, "Abriendo conversación en la fecha: " + anchorTimestamp);
+            messagePager.startAtTimestamp(new Date(anchorTimestamp));
+        } else {
+            startFromStore();
+        }
+    }
+
+    // Mostrar primero lo guardado en el dispositivo y pedir a Firestore solo los mensajes posteriores
+    private void startFromStore() {
+        persistToStore = true;
+
+        messageStore.loadLatest(conversationId, MessagePager.DEFAULT_PAGE_SIZE, stored -> {
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            if (stored.isEmpty()) {
+                Log.d(TAG, "Sin mensajes locales, cargando desde Firestore");
+                storeHasOlder = false;
+                messagePager.start();
+                return;
+            }
+
+            Log.d(TAG, "Mensajes locales mostrados: " + stored.size());
+            // Las filas se arman en el mismo hilo que los snapshots, así llegan antes que el primer delta
+            snapshotExecutor.execute(() -> {
+                List<MessageRow> rows = toStoredRows(stored);
+                runOnUiThread(() -> chatAdapter.addMessagesAtEnd(rows, () ->
+                        conversationRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1)));
+            });
+
+            oldestShownTimestamp = stored.get(0).timestamp;
+            oldestShownId = stored.get(0).message.getId();
+            storeHasOlder = stored.size() >= MessagePager.DEFAULT_PAGE_SIZE;
+            messagePager.startFrom(stored.get(stored.size() - 1).timestamp, oldestShownTimestamp, oldestShownId);
+        });
+    }
+
+    // Las páginas anteriores salen del almacén local mientras tenga; después, de Firestore
+    private void loadOlderMessages() {
+        if (!storeHasOlder) {
+            messagePager.loadOlder();
+            return;
+        }
+        if (loadingOlderFromStore) {
+            return;
+        }
+        loadingOlderFromStore = true;
+
+        messageStore.loadBefore(conversationId, oldestShownTimestamp, oldestShownId, MessagePager.DEFAULT_PAGE_SIZE, stored -> {
+            loadingOlderFromStore = false;
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+
+            if (!stored.isEmpty()) {
+                snapshotExecutor.execute(() -> {
+                    List<MessageRow> rows = toStoredRows(stored);
+                    runOnUiThread(() -> chatAdapter.addMessagesAtStart(rows));
+                });
+                oldestShownTimestamp = stored.get(0).timestamp;
+                oldestShownId = stored.get(0).message.getId();
+                messagePager.setOldest(oldestShownTimestamp, oldestShownId);
+            }
+            if (stored.size() < MessagePager.DEFAULT_PAGE_SIZE) {
+                Log.d(TAG, "Fin del historial local, las siguientes páginas vienen de Firestore");
+                storeHasOlder = false;
+            }
+        });
+    }
+
+    private List<MessageRow> toStoredRows(List<MessageStore.StoredMessage> stored) {
+        List<MessageRow> result = new ArrayList<>(stored.size());
+        for (MessageStore.StoredMessage storedMessage : stored) {
+            result.add(rowFactory.toRow(storedMessage.message));
+        }
+        return result;
+    }
+
+    // Un mensaje recién enviado muestra la hora estimada del dispositivo hasta que el servidor asigne la real
+    private MessageRow toRow(DocumentSnapshot document) {
+        Message message = MessageCodec.decode(document.getId(),
+                document.getData(DocumentSnapshot.ServerTimestampBehavior.ESTIMATE));
+        return rowFactory.toRow(message, document.getMetadata().hasPendingWrites());
+    }
+
+    private List<MessageRow> toRows(List<DocumentSnapshot> documents) {
+        List<MessageRow> result = new ArrayList<>(documents.size());
+        for (DocumentSnapshot document : documents) {
+            result.add(toRow(document));
+        }
+        return result;
+    }
+
+    private boolean isAtBottom() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) conversationRecyclerView.getLayoutManager();
+        int itemCount = chatAdapter.getItemCount();
+        return itemCount == 0 || layoutManager.findLastVisibleItemPosition() >= itemCount - 2;
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Remover listener para evitar memory leaks
-        if (messageListener != null) {
-            messageListener.remove();
+        // Detener el paginador para evitar memory leaks
+        if (messagePager != null) {
+            messagePager.stop();
+        }
+        if (chatAdapter != null) {
+            chatAdapter.release();
+            viewPool.logStats();
+        }
+        if (sendBatcher != null) {
+            sendBatcher.release();
+        }
+        if (typingIndicator != null) {
+            typingIndicator.release();
+        }
+        snapshotExecutor.shutdown();
+        imageEncodeExecutor.shutdown();
+    }
+
+    // Presencia del otro usuario en el encabezado; comparte la suscripción con el directorio
+    private final PresenceManager.Listener presenceListener = (userId, presence) -> {
+        receiverPresence = presence;
+        updateHeaderStatus();
+    };
+
+    // "escribiendo…" tiene prioridad sobre la presencia
+    private void updateHeaderStatus() {
+        if (textPresence == null) {
+            return;
+        }
+        String status = receiverTyping ? "escribiendo…" : PresenceManager.describe(receiverPresence);
+        textPresence.setText(status);
+        textPresence.setVisibility(status.isEmpty() ? View.GONE : View.VISIBLE);
+    }
+
+    private void setupTypingIndicator() {
+        if (conversationId == null || currentUserId == null || receiverUserId == null) {
+            return;
         }
+        typingIndicator = new TypingIndicator(conversationId, currentUserId, receiverUserId);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        PresenceManager.getInstance().observe(receiverUserId, presenceListener);
+        if (typingIndicator != null) {
+            typingIndicator.listen(typing -> {
+                receiverTyping = typing;
+                updateHeaderStatus();
+            });
+        }
         // Verificar autenticación
         if (mAuth.getCurrentUser() == null) {
             // Redirigir al login si no está autenticado
@@ -251,6 +572,71 @@ public class chats extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        markConversationRead();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // La Cloud Function suma los no leídos después de que el mensaje ya se vio aquí:
+        // al salir se vuelve a poner en 0 para no dejar contados mensajes ya leídos
+        markConversationRead();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        PresenceManager.getInstance().removeObserver(receiverUserId, presenceListener);
+        if (typingIndicator != null) {
+            typingIndicator.stopTyping();
+            typingIndicator.stopListening();
+        }
+        // No dejar mensajes esperando la ventana del lote si la app pasa a segundo plano
+        if (sendBatcher != null) {
+            sendBatcher.flush();
+        }
+    }
+
+    // Pone en 0 los no leídos de esta conversación en la bandeja del usuario (users/{uid}/inbox).
+    // El contador está repartido en shards: se ponen en 0 todos junto con el total en caché,
+    // pero solo si hay algo sin leer, para no escribir los shards en cada visita.
+    private void markConversationRead() {
+        if (conversationId == null || currentUserId == null) {
+            return;
+        }
+        DocumentReference summaryRef = database.collection("users")
+                .document(currentUserId)
+                .collection(ConversationSummary.INBOX_COLLECTION)
+                .document(conversationId);
+        summaryRef.get()
+                .addOnSuccessListener(summary -> {
+                    Long unread = summary.getLong(ConversationSummary.FIELD_UNREAD_COUNT);
+                    if (unread == null || unread == 0) {
+                        return;
+                    }
+                    CollectionReference shards = summaryRef
+                            .collection(ConversationSummary.COUNTERS_COLLECTION)
+                            .document(ConversationSummary.UNREAD_COUNTER)
+                            .collection(ConversationSummary.SHARDS_COLLECTION);
+                    WriteBatch batch = database.batch();
+                    for (int i = 0; i < ConversationSummary.UNREAD_SHARDS; i++) {
+                        batch.set(shards.document(String.valueOf(i)),
+                                Collections.singletonMap(ConversationSummary.FIELD_SHARD_COUNT, 0));
+                    }
+                    // countsReadAt: un total leído por la Cloud Function antes de esta escritura ya no la pisa
+                    batch.update(summaryRef, ConversationSummary.FIELD_UNREAD_COUNT, 0,
+                            ConversationSummary.FIELD_COUNTS_READ_AT, FieldValue.serverTimestamp());
+                    batch.commit()
+                            .addOnSuccessListener(unused -> Log.d(TAG, "Conversación marcada como leída (" + unread + ")"))
+                            .addOnFailureListener(e -> Log.e(TAG, "Error marcando la conversación como leída", e));
+                })
+                // Todavía no hay resumen (conversación sin mensajes): no hay nada que marcar
+                .addOnFailureListener(e -> Log.d(TAG, "No se marcó como leída: " + e.getMessage()));
+    }
+
     // Métodos para manejar imágenes
     private void initImagePicker() {
         imagePickerLauncher = registerForActivityResult(
@@ -322,68 +708,82 @@ public class chats extends AppCompatActivity {
             return;
         }
 
-        // Mostrar progreso
-        Toast.makeText(this, "Subiendo imagen...", Toast.LENGTH_SHORT).show();
-
-        // Crear referencia única para la imagen
-        String imageId = UUID.randomUUID().toString();
-        String imagePath = "chat_images/" + conversationId + "/" + imageId + ".jpg";
-        StorageReference imageRef = storageReference.child(imagePath);
-
-        // Subir imagen
-        imageRef.putFile(imageUri)
-                .addOnSuccessListener(taskSnapshot -> {
-                    // Obtener URL de descarga
-                    imageRef.getDownloadUrl().addOnSuccessListener(downloadUri -> {
-                                // Crear mensaje de imagen
-                                Message imageMessage = new Message(
-                                        currentUserId,
-                                        currentUserName,
-                                        receiverUserId,
-                                        receiverUserName,
-                                        conversationId,
-                                        downloadUri.toString(),
-                                        imageId + ".jpg"
-                                );
-
-                                // Crear Map para Firestore
-                                Map<String, Object> messageMap = new HashMap<>();
-                                messageMap.put("senderId", imageMessage.getSenderId());
-                                messageMap.put("senderName", imageMessage.getSenderName());
-                                messageMap.put("receiverId", imageMessage.getReceiverId());
-                                messageMap.put("receiverName", imageMessage.getReceiverName());
-                                messageMap.put("conversationId", imageMessage.getConversationId());
-                                messageMap.put("messageType", Message.TYPE_IMAGE);
-                                messageMap.put("imageUrl", imageMessage.getImageUrl());
-                                messageMap.put("imageName", imageMessage.getImageName());
-                                messageMap.put("text", "");
-                                messageMap.put("timestamp", com.google.firebase.firestore.FieldValue.serverTimestamp());
-
-                                // Guardar en Firestore
-                                database.collection("conversations")
-                                        .document(conversationId)
-                                        .collection("messages")
-                                        .add(messageMap)
-                                        .addOnSuccessListener(documentReference -> {
-                                            Log.d(TAG, "Imagen enviada con ID: " + documentReference.getId());
-                                            Toast.makeText(this, "Imagen enviada", Toast.LENGTH_SHORT).show();
-                                        })
-                                        .addOnFailureListener(e -> {
-                                            Log.e(TAG, "Error al enviar imagen", e);
-                                            Toast.makeText(this, "Error al enviar imagen", Toast.LENGTH_SHORT).show();
-                                        });
-                            })
-                            .addOnFailureListener(e -> {
-                                Log.e(TAG, "Error al obtener URL de descarga", e);
-                                Toast.makeText(this, "Error al procesar imagen", Toast.LENGTH_SHORT).show();
-                            });
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Error al subir imagen", e);
-                    Toast.makeText(this, "Error al subir imagen", Toast.LENGTH_SHORT).show();
+        // El ID del documento se genera ya: identifica el envío en la cola y la fila pendiente
+        String messageId = database.collection("conversations")
+                .document(conversationId)
+                .collection("messages")
+                .document()
+                .getId();
+        String senderId = currentUserId;
+        String senderName = currentUserName;
+        String receiverId = receiverUserId;
+        String receiverName = receiverUserName;
+        String targetConversationId = conversationId;
+
+        // Reducir, recodificar y encolar fuera del hilo principal; la subida sigue aunque se cierre la pantalla
+        imageEncodeExecutor.execute(() -> {
+            try {
+                ImageEncoder.EncodedImage encoded = imageEncoder.encode(imageUri);
+                imageUploadQueue.enqueue(messageId, targetConversationId, senderId, senderName,
+                        receiverId, receiverName, encoded);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error al preparar la imagen", e);
+                runOnUiThread(() -> Toast.makeText(this, "Error al procesar imagen", Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    // Las imágenes que se están enviando en esta conversación se muestran como filas pendientes con su progreso
+    private void observeImageUploads() {
+        WorkManager.getInstance(this)
+                .getWorkInfosByTagLiveData(ImageUploadQueue.tagForConversation(conversationId))
+                .observe(this, workInfos -> {
+                    for (WorkInfo workInfo : workInfos) {
+                        String messageId = ImageUploadQueue.messageIdFromTags(workInfo.getTags());
+                        if (messageId == null) {
+                            continue;
+                        }
+                        switch (workInfo.getState()) {
+                            case ENQUEUED:
+                            case BLOCKED:
+                            case RUNNING:
+                                int progress = workInfo.getProgress().getInt(ImageUploadWorker.KEY_PROGRESS, 0);
+                                showUploadingRow(messageId, progress);
+                                break;
+                            case FAILED:
+                            case CANCELLED:
+                                if (chatAdapter.removeUploadingRow(messageId)) {
+                                    Toast.makeText(this, "Error al enviar imagen", Toast.LENGTH_SHORT).show();
+                                }
+                                break;
+                            case SUCCEEDED:
+                                // Abandonado tras agotar los intentos (el worker no falla para no cortar su cadena)
+                                if (workInfo.getOutputData().getBoolean(ImageUploadWorker.KEY_ABANDONED, false)
+                                        && chatAdapter.removeUploadingRow(messageId)) {
+                                    Toast.makeText(this, "Error al enviar imagen", Toast.LENGTH_SHORT).show();
+                                }
+                                // Si no, la fila la reemplaza el mensaje real cuando llega de Firestore
+                                break;
+                        }
+                    }
                 });
     }
 
+    private void showUploadingRow(String messageId, int progress) {
+        snapshotExecutor.execute(() -> {
+            ImageUploadQueue.PendingUpload upload = imageUploadQueue.get(messageId);
+            if (upload == null) {
+                return;
+            }
+            MessageRow row = rowFactory.toUploadingRow(upload, progress);
+            runOnUiThread(() -> {
+                if (!isDestroyed()) {
+                    chatAdapter.showUploadingRow(row);
+                }
+            });
+        });
+    }
+
     private void sendMessage() {
         String messageText = chatMessageInput.getText().toString().trim();
         if (messageText.isEmpty()) {
@@ -401,37 +801,30 @@ public class chats extends AppCompatActivity {
         Log.d(TAG, "🔍 DEBUG: Conversación ID: " + conversationId);
 
         // Crear objeto para Firestore
-        Map<String, Object> message = new HashMap<>();
-        message.put("senderId", currentUserId);
-        message.put("senderName", currentUserName);
-        message.put("receiverId", receiverUserId);
-        message.put("receiverName", receiverUserName);
-        message.put("text", messageText);
-        message.put("timestamp", com.google.firebase.firestore.FieldValue.serverTimestamp());
-        message.put("messageType", Message.TYPE_TEXT);
-        message.put("conversationId", conversationId);
+        Map<String, Object> message = MessageCodec.encode(new Message(
+                messageText, currentUserId, currentUserName, receiverUserId, receiverUserName, conversationId));
 
         Log.d(TAG, "🔍 DEBUG: Objeto mensaje creado: " + message.toString());
         Log.d(TAG, "🔍 DEBUG: Ruta Firestore: conversations/" + conversationId + "/messages");
 
-        // Guardar mensaje en Firestore
+        // El ID se genera en el cliente y se escribe con set(): la escritura queda en la cola persistente
+        // de Firestore (sobrevive a que se cierre la app) y sus reintentos nunca duplican el mensaje.
+        // El listener en vivo la muestra al instante como pendiente (hasPendingWrites) hasta que el servidor confirma.
+        // Los mensajes enviados en ráfaga se juntan en un solo lote (ver MessageSendBatcher).
         // Firebase Functions automáticamente detectará este nuevo mensaje y enviará las notificaciones push
-        database.collection("conversations")
-                .document(conversationId)
-                .collection("messages")
-                .add(message)
-                .addOnSuccessListener(documentReference -> {
-                    Log.d(TAG, "✅ Mensaje enviado con ID: " + documentReference.getId());
-                    Log.d(TAG, "🔍 DEBUG: Ruta completa: " + documentReference.getPath());
-                    Log.d(TAG, "📡 Firebase Functions debería detectar este mensaje automáticamente");
-                    Log.d(TAG, "🔍 DEBUG: Esperando que Firebase Functions procese la notificación...");
-                    chatMessageInput.setText("");
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "❌ Error al enviar mensaje", e);
-                    Log.e(TAG, "🔍 DEBUG: Error detallado: " + e.getMessage());
-                    Toast.makeText(this, "Error al enviar mensaje", Toast.LENGTH_SHORT).show();
-                });
+        chatMessageInput.setText("");
+        sendBatcher.send(message);
+    }
+
+    private void setupSendBatcher() {
+        if (conversationId == null) {
+            return;
+        }
+        sendBatcher = new MessageSendBatcher(database,
+                database.collection("conversations").document(conversationId).collection("messages"),
+                SEND_BATCH_WINDOW_MS);
+        sendBatcher.setListener((messageCount, e) ->
+                Toast.makeText(this, "Error al enviar mensaje", Toast.LENGTH_SHORT).show());
     }
 
 }
\ No newline at end of file
@@ -67,8 +67,8 @@ echo 7. Regresando al directorio raiz...
 cd ..
 
 echo.
-echo 8. Desplegando functions...
-firebase deploy --only functions
+echo 8. Desplegando functions e indices de Firestore...
+firebase deploy --only functions,firestore:indexes
 if !errorlevel! neq 0 (
     echo ERROR: Error desplegando functions
     pause
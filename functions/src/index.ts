@@ -3,6 +3,9 @@ import * as admin from 'firebase-admin';
 
 admin.initializeApp();
 
+// Largo máximo de la vista previa del último mensaje en la bandeja
+const SUMMARY_PREVIEW_LENGTH = 120;
+
 /**
  * Cloud Function que se ejecuta cuando se crea un nuevo mensaje
  * Envía notificaciones push automáticamente a todos los dispositivos del destinatario
@@ -12,7 +15,7 @@ export const sendMessageNotification = functions.firestore
     .onCreate(async (snapshot, context) => {
         try {
             const messageData = snapshot.data();
-            const { conversationId } = context.params;
+            const { conversationId, messageId } = context.params;
 
             console.log('📨 Nuevo mensaje detectado:', {
                 conversationId,
@@ -22,30 +25,22 @@ export const sendMessageNotification = functions.firestore
                 text: messageData.text
             });
 
-            // Obtener información del destinatario
-            const receiverDoc = await admin.firestore()
-                .collection('users')
-                .doc(messageData.receiverId)
-                .get();
-
-            if (!receiverDoc.exists) {
-                console.error('❌ Usuario destinatario no encontrado:', messageData.receiverId);
+            // Mensajes enviados en ráfaga (un solo lote): se notifica una vez, con el último de la ráfaga
+            const burstSize: number = messageData.burstSize || 1;
+            const burstIndex: number = messageData.burstIndex || 0;
+            if (burstIndex < burstSize - 1) {
+                console.log(`⏭️ Mensaje ${burstIndex + 1}/${burstSize} de una ráfaga, se notifica con el último`);
                 return;
             }
 
-            const receiverData = receiverDoc.data();
-            let fcmTokens: string[] = [];
-
-            // Obtener todos los tokens FCM del destinatario
-            if (receiverData?.fcmTokens && Array.isArray(receiverData.fcmTokens)) {
-                fcmTokens = receiverData.fcmTokens;
-            }
-
-            // También incluir el token individual (compatibilidad)
-            if (receiverData?.fcmToken && !fcmTokens.includes(receiverData.fcmToken)) {
-                fcmTokens.push(receiverData.fcmToken);
+            // Tokens del destinatario (caché de la instancia: a lo sumo una lectura por mensaje)
+            const receiverTokens = await getReceiverTokens(messageData.receiverId);
+            if (!receiverTokens) {
+                console.error('❌ Usuario destinatario no encontrado:', messageData.receiverId);
+                return;
             }
 
+            const fcmTokens = receiverTokens.tokens;
             if (fcmTokens.length === 0) {
                 console.warn('⚠️ No se encontraron tokens FCM para el usuario:', messageData.receiverId);
                 return;
@@ -53,13 +48,12 @@ export const sendMessageNotification = functions.firestore
 
             console.log(`📤 Enviando notificación a ${fcmTokens.length} dispositivos`);
 
-            // Debug: Mostrar los tokens que se van a usar
-            console.log('🔍 DEBUG: Tokens FCM encontrados:', fcmTokens.map(token => token.substring(0, 20) + '...'));
-
             // Crear el payload de la notificación con la estructura correcta de FCM
             const notificationPayload = {
                 notification: {
-                    title: `${messageData.senderName} te envió un mensaje`,
+                    title: burstSize > 1
+                        ? `${messageData.senderName} te envió ${burstSize} mensajes`
+                        : `${messageData.senderName} te envió un mensaje`,
                     body: messageData.text || 'Te envió una imagen'
                     // Removidos: icon, sound, click_action (no son válidos en FCM v1)
                 },
@@ -67,6 +61,7 @@ export const sendMessageNotification = functions.firestore
                     senderId: messageData.senderId,
                     senderName: messageData.senderName,
                     conversationId: conversationId,
+                    messageId: messageId,
                     messageType: messageData.messageType || 'text',
                     timestamp: Date.now().toString()
                 },
@@ -81,33 +76,22 @@ export const sendMessageNotification = functions.firestore
                 }
             };
 
-            console.log('🔍 DEBUG: Payload de notificación:', JSON.stringify(notificationPayload, null, 2));
-
-            // Enviar a todos los tokens
-            const sendPromises = fcmTokens.map(async (token) => {
-                try {
-                    const response = await admin.messaging().send({
-                        token: token,
-                        ...notificationPayload
-                    });
-                    console.log('✅ Notificación enviada al token:', token.substring(0, 20) + '...');
-                    return response;
-                } catch (error: any) {
-                    console.error('❌ Error enviando a token:', token.substring(0, 20) + '...', error.message);
-
-                    // Si el token es inválido, eliminarlo de la base de datos
-                    if (error.code === 'messaging/registration-token-not-registered' ||
-                        error.code === 'messaging/invalid-registration-token') {
-                        await removeInvalidToken(messageData.receiverId, token);
-                    }
-                    return null;
-                }
+            // Una sola llamada para todos los dispositivos del destinatario
+            const response = await admin.messaging().sendEachForMulticast({
+                tokens: fcmTokens,
+                ...notificationPayload
             });
 
-            const results = await Promise.allSettled(sendPromises);
-            const successful = results.filter(result => result.status === 'fulfilled').length;
+            // Los tokens inválidos de esta respuesta se quitan juntos, en una sola escritura
+            const invalidTokens = response.responses
+                .map((result, i) => (!result.success && isInvalidTokenError(result.error) ? fcmTokens[i] : null))
+                .filter((token): token is string => token !== null);
+            if (invalidTokens.length > 0) {
+                await pruneInvalidTokens(messageData.receiverId, receiverTokens, invalidTokens);
+            }
 
-            console.log(`📊 Notificaciones enviadas: ${successful}/${fcmTokens.length}`);
+            console.log(`📊 Notificaciones enviadas: ${response.successCount}/${fcmTokens.length}` +
+                (invalidTokens.length > 0 ? `, tokens inválidos quitados: ${invalidTokens.length}` : ''));
 
         } catch (error) {
             console.error('❌ Error en sendMessageNotification:', error);
@@ -115,82 +99,768 @@ export const sendMessageNotification = functions.firestore
     });
 
 /**
- * Función para eliminar tokens inválidos de la base de datos
+ * Contadores repartidos en shards: {contador}/shards/{0..n-1} con un campo count.
+ * Cada incremento va a un shard al azar, así ráfagas de escrituras no compiten por un solo documento
+ * (Firestore sostiene ~1 escritura por segundo por documento). El total es la suma de los shards y
+ * se guarda en caché en los resúmenes de la bandeja (unreadCount, messageCount), que ya se escriben
+ * con cada mensaje. Los shards se leen fuera de la transacción; el total en caché solo se reemplaza
+ * si se leyó después que el guardado (countsReadAt), así una lectura vieja no pisa una más nueva.
+ */
+// Mantener igual que ConversationSummary.UNREAD_SHARDS en la app, que los pone en 0 al leer
+const UNREAD_SHARDS = 4;
+const MESSAGE_COUNT_SHARDS = 10;
+
+function shardRefs(counterRef: admin.firestore.DocumentReference, shards: number) {
+    return Array.from({ length: shards }, (_, i) => counterRef.collection('shards').doc(String(i)));
+}
+
+function sumShards(docs: admin.firestore.DocumentSnapshot[]): number {
+    return docs.reduce((total, doc) => total + (doc.get('count') || 0), 0);
+}
+
+/**
+ * Eventos ya contados: counterEvents/{eventId}, con expireAt para una política TTL de Firestore.
+ * Los triggers pueden entregar el mismo evento más de una vez; la marca se crea en el mismo lote que
+ * los incrementos, así un evento repetido falla con ALREADY_EXISTS y no cuenta dos veces.
  */
-async function removeInvalidToken(userId: string, invalidToken: string) {
+const COUNTER_EVENTS_COLLECTION = 'counterEvents';
+const COUNTER_EVENT_TTL_MS = 7 * 24 * 60 * 60 * 1000;
+// Código gRPC de ALREADY_EXISTS
+const ALREADY_EXISTS = 6;
+
+async function incrementOnce(eventId: string,
+                             increments: { counterRef: admin.firestore.DocumentReference; shards: number }[],
+                             delta: number): Promise<boolean> {
+    const db = admin.firestore();
+    const batch = db.batch();
+    batch.create(db.collection(COUNTER_EVENTS_COLLECTION).doc(eventId), {
+        expireAt: admin.firestore.Timestamp.fromMillis(Date.now() + COUNTER_EVENT_TTL_MS)
+    });
+    for (const { counterRef, shards } of increments) {
+        const shard = Math.floor(Math.random() * shards);
+        batch.set(counterRef.collection('shards').doc(String(shard)),
+            { count: admin.firestore.FieldValue.increment(delta) }, { merge: true });
+    }
     try {
-        const userRef = admin.firestore().collection('users').doc(userId);
-        const userDoc = await userRef.get();
+        await batch.commit();
+        return true;
+    } catch (error: any) {
+        if (error?.code === ALREADY_EXISTS) {
+            return false;
+        }
+        throw error;
+    }
+}
+
+/**
+ * Campos comunes del resumen de bandeja a partir del último mensaje de una conversación.
+ */
+function summaryFields(conversationId: string, snapshot: admin.firestore.DocumentSnapshot) {
+    const messageData = snapshot.data() || {};
+    const { senderId, receiverId } = messageData;
+
+    // Los mensajes sin timestamp usan la hora de creación del documento
+    const lastMessageAt: admin.firestore.Timestamp = messageData.timestamp || snapshot.createTime;
+    const isImage = messageData.messageType === 'image';
+    const preview: string = isImage
+        ? '📷 Imagen'
+        : (messageData.text || '').substring(0, SUMMARY_PREVIEW_LENGTH);
+
+    const participantNames = {
+        [senderId]: messageData.senderName || '',
+        [receiverId]: messageData.receiverName || ''
+    };
+    const common = {
+        conversationId,
+        participantIds: [senderId, receiverId],
+        participantNames,
+        lastMessageId: snapshot.id,
+        lastMessageText: preview,
+        lastMessageType: messageData.messageType || 'text',
+        lastSenderId: senderId,
+        lastMessageAt
+    };
+    return { common, participantNames, lastMessageAt };
+}
+
+// Un mensaje que llega tarde (reintento, ráfaga, backfill) no pisa un resumen más reciente
+function isNewerSummary(doc: admin.firestore.DocumentSnapshot, lastMessageAt: admin.firestore.Timestamp): boolean {
+    const current: admin.firestore.Timestamp | undefined = doc.get('lastMessageAt');
+    return !current || current.toMillis() <= lastMessageAt.toMillis();
+}
+
+/**
+ * Mantiene la bandeja de cada participante: users/{uid}/inbox/{conversationId}
+ * Cada resumen guarda los participantes, una vista previa del último mensaje, lastMessageAt
+ * y los no leídos, para que MainChats se pinte con una sola consulta ordenada y limitada.
+ * Los no leídos (users/{uid}/inbox/{conversationId}/counters/unread) y el total de mensajes
+ * (conversations/{conversationId}/counters/messages) son contadores repartidos en shards.
+ * El cliente solo pone los no leídos en 0 al abrir la conversación (y countsReadAt en la hora del servidor).
+ */
+export const updateConversationSummaries = functions.firestore
+    .document('conversations/{conversationId}/messages/{messageId}')
+    .onCreate(async (snapshot, context) => {
+        const messageData = snapshot.data();
+        const { conversationId, messageId } = context.params;
+        const { senderId, receiverId } = messageData;
+
+        if (!senderId || !receiverId) {
+            console.warn('⚠️ Mensaje sin participantes, no se actualiza la bandeja:', messageId);
+            return;
+        }
+
+        // Una ráfaga se escribe en un solo lote: el último mensaje actualiza la bandeja por todos
+        const burstSize: number = messageData.burstSize || 1;
+        const burstIndex: number = messageData.burstIndex || 0;
+        if (burstIndex < burstSize - 1) {
+            return;
+        }
+
+        const { common, participantNames, lastMessageAt } = summaryFields(conversationId, snapshot);
 
-        if (userDoc.exists) {
-            const userData = userDoc.data();
-            let fcmTokens: string[] = userData?.fcmTokens || [];
+        const db = admin.firestore();
+        const senderRef = db.collection('users').doc(senderId).collection('inbox').doc(conversationId);
+        const receiverRef = db.collection('users').doc(receiverId).collection('inbox').doc(conversationId);
+        const unreadCounterRef = receiverRef.collection('counters').doc('unread');
+        const messageCounterRef = db.collection('conversations').doc(conversationId)
+            .collection('counters').doc('messages');
 
-            // Eliminar el token inválido
-            fcmTokens = fcmTokens.filter(token => token !== invalidToken);
+        try {
+            const counted = await incrementOnce(context.eventId, [
+                { counterRef: unreadCounterRef, shards: UNREAD_SHARDS },
+                { counterRef: messageCounterRef, shards: MESSAGE_COUNT_SHARDS }
+            ], burstSize);
+            if (!counted) {
+                console.log('Evento ya contado, solo se refresca la bandeja:', context.eventId);
+            }
+
+            // Lectura de los shards fuera de la transacción: la transacción solo bloquea los dos resúmenes
+            const shardDocs = await db.getAll(
+                ...shardRefs(unreadCounterRef, UNREAD_SHARDS),
+                ...shardRefs(messageCounterRef, MESSAGE_COUNT_SHARDS));
+            const unreadCount = sumShards(shardDocs.slice(0, UNREAD_SHARDS));
+            const messageCount = sumShards(shardDocs.slice(UNREAD_SHARDS));
+            const countsReadAt = shardDocs[0].readTime;
+
+            await db.runTransaction(async (tx) => {
+                const [senderDoc, receiverDoc] = await tx.getAll(senderRef, receiverRef);
+
+                const isNewer = (doc: admin.firestore.DocumentSnapshot) => isNewerSummary(doc, lastMessageAt);
+                // Ni un total leído antes que el guardado (otra función o el cliente al marcar leído)
+                const counts = (doc: admin.firestore.DocumentSnapshot, values: { [field: string]: number }) => {
+                    const current: admin.firestore.Timestamp | undefined = doc.get('countsReadAt');
+                    return !current || current.valueOf() < countsReadAt.valueOf()
+                        ? { ...values, countsReadAt }
+                        : {};
+                };
+
+                if (isNewer(senderDoc)) {
+                    tx.set(senderRef, {
+                        ...common,
+                        ...counts(senderDoc, { messageCount }),
+                        otherUserId: receiverId,
+                        otherUserName: participantNames[receiverId]
+                    }, { merge: true });
+                }
 
-            await userRef.update({
-                fcmTokens: fcmTokens,
-                // También limpiar el token individual si coincide
-                ...(userData?.fcmToken === invalidToken && { fcmToken: admin.firestore.FieldValue.delete() })
+                // El total de no leídos se refresca siempre, aunque el resumen ya muestre otro mensaje
+                tx.set(receiverRef, {
+                    ...(isNewer(receiverDoc) ? common : {}),
+                    ...counts(receiverDoc, { messageCount, unreadCount }),
+                    otherUserId: senderId,
+                    otherUserName: participantNames[senderId]
+                }, { merge: true });
             });
 
-            console.log('🧹 Token inválido eliminado:', invalidToken.substring(0, 20) + '...');
+            console.log('📥 Bandejas actualizadas para la conversación:', conversationId);
+        } catch (error) {
+            console.error('❌ Error actualizando bandejas:', error);
         }
+    });
+
+// Backfill de bandejas: conversaciones por ejecución (ordenadas por ID) y lecturas en paralelo
+const INBOX_BACKFILL_PAGE_SIZE = 100;
+const INBOX_BACKFILL_CONCURRENCY = 10;
+const INBOX_BACKFILL_CHECKPOINT_PATH = 'maintenance/inboxBackfill';
+
+/**
+ * Backfill único de users/{uid}/inbox para las conversaciones anteriores a updateConversationSummaries,
+ * que si no quedarían fuera de la bandeja hasta el próximo mensaje.
+ * - Las conversaciones no tienen documento propio (solo la subcolección messages): se listan con
+ *   listDocuments y se recorren ordenadas por ID, desde el punto de avance en maintenance/inboxBackfill.
+ * - De cada una se lee solo el último mensaje y se escriben los dos resúmenes con la misma guarda por
+ *   lastMessageAt que el trigger: un resumen ya escrito por un mensaje nuevo no se pisa.
+ * - Los no leídos no se conocen para mensajes viejos: quedan en 0. Los contadores empiezan con el trigger.
+ * Se ejecuta cada hora hasta completar la pasada; después no hace nada.
+ */
+export const backfillInboxSummaries = functions
+    .runWith({ timeoutSeconds: CLEANUP_TIMEOUT_SECONDS, memory: '512MB' })
+    .pubsub.schedule('every 1 hours')
+    .onRun(async (context) => {
+        const startedAt = Date.now();
+        const db = admin.firestore();
+        const checkpointRef = db.doc(INBOX_BACKFILL_CHECKPOINT_PATH);
+
+        try {
+            const checkpoint = (await checkpointRef.get()).data() || {};
+            if (checkpoint.completedAt) {
+                return;
+            }
+            let lastConversationId: string = checkpoint.lastConversationId || '';
+            let written: number = checkpoint.written || 0;
+
+            const conversationIds = (await db.collection('conversations').listDocuments())
+                .map(ref => ref.id)
+                .filter(id => id > lastConversationId)
+                .sort();
+            console.log('📥 Backfill de bandejas desde:', lastConversationId || '(inicio)', conversationIds.length, 'pendientes');
+
+            for (let start = 0; start < conversationIds.length; start += INBOX_BACKFILL_PAGE_SIZE) {
+                if (Date.now() - startedAt >= CLEANUP_TIME_BUDGET_MS) {
+                    console.log('⏸️ Tiempo agotado, el backfill continúa en la próxima ejecución desde:', lastConversationId);
+                    return;
+                }
+                const page = conversationIds.slice(start, start + INBOX_BACKFILL_PAGE_SIZE);
+                const results = await runWithConcurrency(page.map(conversationId => () =>
+                    backfillConversationSummary(db, conversationId)), INBOX_BACKFILL_CONCURRENCY);
+                written += results.filter(Boolean).length;
+
+                // Punto de avance: la página quedó procesada
+                lastConversationId = page[page.length - 1];
+                await checkpointRef.set({ lastConversationId, written }, { merge: true });
+            }
+
+            await checkpointRef.set({ completedAt: admin.firestore.FieldValue.serverTimestamp() }, { merge: true });
+            console.log('✅ Backfill de bandejas completado. Conversaciones con resumen:', written);
+        } catch (error) {
+            // El punto de avance guardado permite reintentar desde la última página completa
+            console.error('❌ Error en backfill de bandejas:', error);
+        }
+    });
+
+async function backfillConversationSummary(db: admin.firestore.Firestore, conversationId: string): Promise<boolean> {
+    const latest = await db.collection('conversations').doc(conversationId).collection('messages')
+        .orderBy('timestamp', 'desc')
+        .limit(1)
+        .get();
+    if (latest.empty) {
+        return false;
+    }
+    const snapshot = latest.docs[0];
+    const { senderId, receiverId } = snapshot.data();
+    if (!senderId || !receiverId) {
+        return false;
+    }
+
+    const { common, participantNames, lastMessageAt } = summaryFields(conversationId, snapshot);
+    const senderRef = db.collection('users').doc(senderId).collection('inbox').doc(conversationId);
+    const receiverRef = db.collection('users').doc(receiverId).collection('inbox').doc(conversationId);
+    await db.runTransaction(async (tx) => {
+        const [senderDoc, receiverDoc] = await tx.getAll(senderRef, receiverRef);
+        if (isNewerSummary(senderDoc, lastMessageAt)) {
+            tx.set(senderRef, {
+                ...common,
+                otherUserId: receiverId,
+                otherUserName: participantNames[receiverId]
+            }, { merge: true });
+        }
+        if (isNewerSummary(receiverDoc, lastMessageAt)) {
+            tx.set(receiverRef, {
+                ...common,
+                otherUserId: senderId,
+                otherUserName: participantNames[senderId]
+            }, { merge: true });
+        }
+    });
+    return true;
+}
+
+/**
+ * Tokens FCM de un usuario, con el dispositivo al que pertenece cada uno (devices.{deviceId}.token).
+ */
+interface ReceiverTokens {
+    tokens: string[];
+    legacyToken?: string;
+    deviceIdsByToken: { [token: string]: string };
+}
+
+/**
+ * Caché de tokens por usuario dentro de la instancia de la función.
+ * La instancia atiende muchos mensajes seguidos: con la caché, leer users/{uid} cuesta una vez por TTL
+ * en vez de una vez por mensaje. Un dispositivo recién registrado puede tardar hasta el TTL en recibir.
+ * La entrada se invalida cuando esta instancia quita tokens; las escrituras de la app (TokenRegistrar)
+ * se ven al vencer el TTL, ya que no hay forma de avisar a otras instancias.
+ */
+const TOKEN_CACHE_TTL_MS = 60 * 1000;
+// Un documento por dispositivo (lo escribe TokenRegistrar en la app), consultable por validatedAt
+const DEVICES_COLLECTION = 'devices';
+const tokenCache = new Map<string, { value: ReceiverTokens; expiresAt: number }>();
+
+async function getReceiverTokens(userId: string): Promise<ReceiverTokens | null> {
+    const cached = tokenCache.get(userId);
+    if (cached && cached.expiresAt > Date.now()) {
+        return cached.value;
+    }
+
+    const userDoc = await admin.firestore().collection('users').doc(userId).get();
+    if (!userDoc.exists) {
+        tokenCache.delete(userId);
+        return null;
+    }
+
+    const value = readTokens(userDoc.data());
+    tokenCache.set(userId, { value, expiresAt: Date.now() + TOKEN_CACHE_TTL_MS });
+    return value;
+}
+
+/**
+ * Tokens de un documento de usuario: fcmTokens, el token individual y el dispositivo de cada uno.
+ */
+function readTokens(userData?: admin.firestore.DocumentData): ReceiverTokens {
+    const tokens: string[] = Array.isArray(userData?.fcmTokens) ? [...userData!.fcmTokens] : [];
+    // También incluir el token individual (compatibilidad)
+    const legacyToken: string | undefined = userData?.fcmToken || undefined;
+    if (legacyToken && !tokens.includes(legacyToken)) {
+        tokens.push(legacyToken);
+    }
+
+    const deviceIdsByToken: { [token: string]: string } = {};
+    const devices = userData?.devices || {};
+    for (const deviceId of Object.keys(devices)) {
+        if (devices[deviceId]?.token) {
+            deviceIdsByToken[devices[deviceId].token] = deviceId;
+        }
+    }
+
+    return { tokens, legacyToken, deviceIdsByToken };
+}
+
+function isInvalidTokenError(error?: { code: string }): boolean {
+    return error?.code === 'messaging/registration-token-not-registered' ||
+        error?.code === 'messaging/invalid-registration-token';
+}
+
+/**
+ * Campos a escribir para quitar varios tokens sin leer antes: arrayRemove en fcmTokens,
+ * el campo individual si es uno de ellos y los dispositivos que los usaban.
+ */
+function invalidTokenUpdates(known: ReceiverTokens, invalidTokens: string[]): { [field: string]: any } {
+    const updates: { [field: string]: any } = {
+        fcmTokens: admin.firestore.FieldValue.arrayRemove(...invalidTokens),
+        // Las cachés de usuarios de la app sincronizan por updatedAt
+        updatedAt: admin.firestore.FieldValue.serverTimestamp()
+    };
+    if (known.legacyToken && invalidTokens.includes(known.legacyToken)) {
+        updates.fcmToken = admin.firestore.FieldValue.delete();
+    }
+    for (const token of invalidTokens) {
+        const deviceId = known.deviceIdsByToken[token];
+        if (deviceId) {
+            updates[`devices.${deviceId}`] = admin.firestore.FieldValue.delete();
+        }
+    }
+    return updates;
+}
+
+/**
+ * Agrega al lote la limpieza de los tokens inválidos de un usuario: la actualización de users/{uid}
+ * y el borrado de users/{uid}/devices/{deviceId} de cada dispositivo conocido. Devuelve las escrituras agregadas.
+ */
+function addInvalidTokenWrites(batch: admin.firestore.WriteBatch, userId: string,
+                               known: ReceiverTokens, invalidTokens: string[]): number {
+    const userRef = admin.firestore().collection('users').doc(userId);
+    batch.update(userRef, invalidTokenUpdates(known, invalidTokens));
+    let writes = 1;
+    for (const token of invalidTokens) {
+        const deviceId = known.deviceIdsByToken[token];
+        if (deviceId) {
+            batch.delete(userRef.collection(DEVICES_COLLECTION).doc(deviceId));
+            writes++;
+        }
+    }
+    tokenCache.delete(userId);
+    return writes;
+}
+
+/**
+ * Quita varios tokens inválidos de un usuario en un solo lote.
+ */
+async function pruneInvalidTokens(userId: string, known: ReceiverTokens, invalidTokens: string[]) {
+    try {
+        const batch = admin.firestore().batch();
+        addInvalidTokenWrites(batch, userId, known, invalidTokens);
+        await batch.commit();
+        console.log(`🧹 Tokens inválidos eliminados: ${invalidTokens.length}`);
     } catch (error) {
-        console.error('❌ Error eliminando token inválido:', error);
+        console.error('❌ Error eliminando tokens inválidos:', error);
+    }
+}
+
+/**
+ * Valida tokens con envíos de prueba (dry run) multicast de a {@link MULTICAST_MAX_TOKENS},
+ * con a lo sumo {@link CLEANUP_SEND_CONCURRENCY} llamadas en curso. Devuelve si cada token es inválido.
+ */
+async function findInvalidTokens(tokens: string[]): Promise<boolean[]> {
+    const chunks: string[][] = [];
+    for (let i = 0; i < tokens.length; i += MULTICAST_MAX_TOKENS) {
+        chunks.push(tokens.slice(i, i + MULTICAST_MAX_TOKENS));
     }
+
+    const responses = await runWithConcurrency(chunks.map(chunk => () =>
+        admin.messaging().sendEachForMulticast({
+            tokens: chunk,
+            data: { test: 'connectivity' }
+        }, true) // dry run
+    ), CLEANUP_SEND_CONCURRENCY);
+
+    // Otros errores (cuota, red) no invalidan el token
+    return responses.flatMap(response =>
+        response.responses.map(result => !result.success && isInvalidTokenError(result.error)));
 }
 
 /**
- * Cloud Function para limpiar tokens FCM inválidos periódicamente
+ * Ejecuta las tareas con a lo sumo `limit` en curso a la vez; devuelve los resultados en orden.
  */
-export const cleanupInvalidTokens = functions.pubsub
-    .schedule('every 24 hours')
+async function runWithConcurrency<T>(tasks: (() => Promise<T>)[], limit: number): Promise<T[]> {
+    const results: T[] = new Array(tasks.length);
+    let next = 0;
+    const workers = Array.from({ length: Math.min(limit, tasks.length) }, async () => {
+        while (next < tasks.length) {
+            const index = next++;
+            results[index] = await tasks[index]();
+        }
+    });
+    await Promise.all(workers);
+    return results;
+}
+
+// Limpieza de tokens: usuarios por página, tokens por llamada multicast (máximo de FCM),
+// llamadas en paralelo y escrituras por lote (máximo de Firestore)
+const CLEANUP_PAGE_SIZE = 300;
+const MULTICAST_MAX_TOKENS = 500;
+const CLEANUP_SEND_CONCURRENCY = 4;
+const BATCH_MAX_WRITES = 500;
+// Se corta antes del timeout de la función y se guarda el punto de avance
+const CLEANUP_TIMEOUT_SECONDS = 540;
+const CLEANUP_TIME_BUDGET_MS = 420 * 1000;
+// La pasada completa solo recoge tokens sin documento de dispositivo (anteriores a users/{uid}/devices);
+// lo demás lo cubre el barrido diario sweepStaleTokens
+const CLEANUP_INTERVAL_MS = 30 * 24 * 60 * 60 * 1000;
+const CLEANUP_CHECKPOINT_PATH = 'maintenance/tokenCleanup';
+
+/**
+ * Cloud Function para limpiar tokens FCM inválidos periódicamente.
+ * - Recorre users por páginas ordenadas por ID (cursor), leyendo solo los campos de tokens.
+ * - Valida los tokens de cada página con envíos de prueba (dry run) multicast, varios en paralelo.
+ * - Quita los inválidos con lotes de escrituras (arrayRemove, sin reescribir el arreglo).
+ * - Guarda el último ID procesado en maintenance/tokenCleanup después de cada página: se ejecuta
+ *   cada hora, continúa desde ahí si la pasada anterior no terminó y, si terminó, espera a que
+ *   pasen 30 días desde que empezó.
+ */
+export const cleanupInvalidTokens = functions
+    .runWith({ timeoutSeconds: CLEANUP_TIMEOUT_SECONDS, memory: '512MB' })
+    .pubsub.schedule('every 1 hours')
     .onRun(async (context) => {
-        console.log('🧹 Iniciando limpieza de tokens inválidos...');
+        const startedAt = Date.now();
+        const db = admin.firestore();
+        const checkpointRef = db.doc(CLEANUP_CHECKPOINT_PATH);
 
         try {
-            const usersSnapshot = await admin.firestore().collection('users').get();
-            let totalCleaned = 0;
-
-            for (const userDoc of usersSnapshot.docs) {
-                const userData = userDoc.data();
-                const fcmTokens: string[] = userData.fcmTokens || [];
-
-                if (fcmTokens.length === 0) continue;
-
-                // Verificar cada token
-                const validTokens: string[] = [];
-
-                for (const token of fcmTokens) {
-                    try {
-                        await admin.messaging().send({
-                            token: token,
-                            data: { test: 'connectivity' }
-                        }, true); // dry run
-
-                        validTokens.push(token);
-                    } catch (error: any) {
-                        if (error.code === 'messaging/registration-token-not-registered' ||
-                            error.code === 'messaging/invalid-registration-token') {
-                            console.log('🗑️ Token inválido encontrado:', token.substring(0, 20) + '...');
-                            totalCleaned++;
-                        } else {
-                            // Si es otro tipo de error, mantener el token
-                            validTokens.push(token);
-                        }
+            const checkpoint = (await checkpointRef.get()).data() || {};
+            let lastUserId: string | null = checkpoint.lastUserId || null;
+            let totalCleaned: number = checkpoint.cleaned || 0;
+            let totalChecked: number = checkpoint.checked || 0;
+            const passStartedAt: number = checkpoint.passStartedAt || 0;
+
+            if (!lastUserId) {
+                if (startedAt - passStartedAt < CLEANUP_INTERVAL_MS) {
+                    console.log('⏭️ Limpieza de tokens al día, nada que hacer');
+                    return;
+                }
+                // Pasada nueva
+                totalCleaned = 0;
+                totalChecked = 0;
+                await checkpointRef.set({ passStartedAt: startedAt, lastUserId: null, cleaned: 0, checked: 0 });
+                console.log('🧹 Iniciando limpieza de tokens inválidos...');
+            } else {
+                console.log('🧹 Continuando limpieza de tokens desde:', lastUserId);
+            }
+
+            while (Date.now() - startedAt < CLEANUP_TIME_BUDGET_MS) {
+                let query = db.collection('users')
+                    .orderBy(admin.firestore.FieldPath.documentId())
+                    .select('fcmTokens', 'fcmToken', 'devices')
+                    .limit(CLEANUP_PAGE_SIZE);
+                if (lastUserId) {
+                    query = query.startAfter(lastUserId);
+                }
+                const page = await query.get();
+
+                if (page.empty) {
+                    await checkpointRef.update({ lastUserId: null, completedAt: admin.firestore.FieldValue.serverTimestamp() });
+                    console.log(`✅ Limpieza completada. Tokens revisados: ${totalChecked}, eliminados: ${totalCleaned}`);
+                    return;
+                }
+
+                // Pares (usuario, token) de la página, repartidos en llamadas multicast
+                const known = new Map<string, ReceiverTokens>();
+                const entries: { userId: string; token: string }[] = [];
+                for (const userDoc of page.docs) {
+                    const tokens = readTokens(userDoc.data());
+                    known.set(userDoc.id, tokens);
+                    for (const token of tokens.tokens) {
+                        entries.push({ userId: userDoc.id, token });
                     }
                 }
 
-                // Actualizar solo si hay cambios
-                if (validTokens.length !== fcmTokens.length) {
-                    await userDoc.ref.update({ fcmTokens: validTokens });
+                const invalid = await findInvalidTokens(entries.map(entry => entry.token));
+
+                // Tokens inválidos por usuario
+                const invalidByUser = new Map<string, string[]>();
+                entries.forEach(({ userId, token }, i) => {
+                    if (invalid[i]) {
+                        invalidByUser.set(userId, [...(invalidByUser.get(userId) || []), token]);
+                    }
+                });
+
+                let batch = db.batch();
+                let batchWrites = 0;
+                const commits: Promise<admin.firestore.WriteResult[]>[] = [];
+                for (const [userId, invalidTokens] of invalidByUser) {
+                    // Un usuario no queda repartido entre dos lotes
+                    if (batchWrites + 1 + invalidTokens.length > BATCH_MAX_WRITES) {
+                        commits.push(batch.commit());
+                        batch = db.batch();
+                        batchWrites = 0;
+                    }
+                    batchWrites += addInvalidTokenWrites(batch, userId, known.get(userId)!, invalidTokens);
+                    totalCleaned += invalidTokens.length;
+                }
+                if (batchWrites > 0) {
+                    commits.push(batch.commit());
                 }
+                await Promise.all(commits);
+
+                // Punto de avance: la página quedó procesada
+                totalChecked += entries.length;
+                lastUserId = page.docs[page.docs.length - 1].id;
+                await checkpointRef.update({ lastUserId, cleaned: totalCleaned, checked: totalChecked });
+                console.log(`🧹 Página procesada: ${page.size} usuarios, ${entries.length} tokens, inválidos acumulados: ${totalCleaned}`);
             }
 
-            console.log(`✅ Limpieza completada. Tokens eliminados: ${totalCleaned}`);
+            console.log('⏸️ Tiempo agotado, la limpieza continúa en la próxima ejecución desde:', lastUserId);
         } catch (error) {
+            // El punto de avance guardado permite reintentar desde la última página completa
             console.error('❌ Error en limpieza de tokens:', error);
         }
     });
+
+// Backfill de campos de búsqueda: usuarios por página y punto de avance
+const SEARCH_FIELDS_PAGE_SIZE = 300;
+const SEARCH_FIELDS_CHECKPOINT_PATH = 'maintenance/searchFieldsBackfill';
+
+/**
+ * Igual que UserDirectory.normalize en la app: sin espacios en los extremos, sin diacríticos y en minúsculas.
+ */
+function normalizeSearchField(value?: string): string {
+    if (!value) {
+        return '';
+    }
+    return value.trim().normalize('NFD').replace(new RegExp('\\p{M}+', 'gu'), '').toLowerCase();
+}
+
+/**
+ * Backfill de nombreLower/emailLower (y updatedAt) en users para los usuarios registrados antes de la
+ * búsqueda por prefijo: sin esos campos las consultas de rango del directorio no los encuentran, y un
+ * contacto que no vuelve a entrar a la app nunca los completaría desde el cliente.
+ * - Recorre users por páginas ordenadas por ID, leyendo solo nombre, email y los campos normalizados.
+ * - Escribe solo los usuarios a los que les faltan o tienen otro valor, con lotes de escrituras.
+ * - Guarda el último ID procesado en maintenance/searchFieldsBackfill; se ejecuta cada hora hasta
+ *   completar la pasada y después no hace nada.
+ */
+export const backfillSearchFields = functions
+    .runWith({ timeoutSeconds: CLEANUP_TIMEOUT_SECONDS, memory: '512MB' })
+    .pubsub.schedule('every 1 hours')
+    .onRun(async (context) => {
+        const startedAt = Date.now();
+        const db = admin.firestore();
+        const checkpointRef = db.doc(SEARCH_FIELDS_CHECKPOINT_PATH);
+
+        try {
+            const checkpoint = (await checkpointRef.get()).data() || {};
+            if (checkpoint.completedAt) {
+                return;
+            }
+            let lastUserId: string | null = checkpoint.lastUserId || null;
+            let updated: number = checkpoint.updated || 0;
+
+            while (Date.now() - startedAt < CLEANUP_TIME_BUDGET_MS) {
+                let query = db.collection('users')
+                    .orderBy(admin.firestore.FieldPath.documentId())
+                    .select('nombre', 'email', 'nombreLower', 'emailLower')
+                    .limit(SEARCH_FIELDS_PAGE_SIZE);
+                if (lastUserId) {
+                    query = query.startAfter(lastUserId);
+                }
+                const page = await query.get();
+
+                if (page.empty) {
+                    await checkpointRef.set({ completedAt: admin.firestore.FieldValue.serverTimestamp() }, { merge: true });
+                    console.log('✅ Backfill de campos de búsqueda completado. Usuarios actualizados:', updated);
+                    return;
+                }
+
+                const batch = db.batch();
+                let batchWrites = 0;
+                for (const userDoc of page.docs) {
+                    const nombreLower = normalizeSearchField(userDoc.get('nombre'));
+                    const emailLower = normalizeSearchField(userDoc.get('email'));
+                    if (userDoc.get('nombreLower') === nombreLower && userDoc.get('emailLower') === emailLower) {
+                        continue;
+                    }
+                    batch.update(userDoc.ref, {
+                        nombreLower,
+                        emailLower,
+                        // Las cachés de usuarios de la app sincronizan por updatedAt
+                        updatedAt: admin.firestore.FieldValue.serverTimestamp()
+                    });
+                    batchWrites++;
+                }
+                // La página entra en un lote (SEARCH_FIELDS_PAGE_SIZE <= BATCH_MAX_WRITES)
+                if (batchWrites > 0) {
+                    await batch.commit();
+                }
+                updated += batchWrites;
+
+                // Punto de avance: la página quedó procesada
+                lastUserId = page.docs[page.docs.length - 1].id;
+                await checkpointRef.set({ lastUserId, updated }, { merge: true });
+            }
+
+            console.log('⏸️ Tiempo agotado, el backfill de campos de búsqueda continúa desde:', lastUserId);
+        } catch (error) {
+            // El punto de avance guardado permite reintentar desde la última página completa
+            console.error('❌ Error en backfill de campos de búsqueda:', error);
+        }
+    });
+
+// Barrido incremental: tokens sin renovar ni validar en este tiempo (la app renueva lastSeen y
+// validatedAt cada 7 días, así que los dispositivos en uso nunca entran en la consulta)
+const STALE_TOKEN_DAYS = 30;
+const SWEEP_PAGE_SIZE = 500;
+const SWEEP_STATS_PATH = 'maintenance/tokenSweep';
+
+/**
+ * Cloud Function diaria que revisa solo los dispositivos con validatedAt más antiguo que
+ * {@link STALE_TOKEN_DAYS} días (consulta de grupo sobre users/{uid}/devices), no todos los usuarios:
+ * el costo sigue a los tokens que dejaron de renovarse, no a la cantidad de usuarios.
+ * - Tokens inválidos: se quitan del usuario (también de fcmToken si es el mismo) y se borra su documento
+ *   de dispositivo. Si el usuario ya no existe, solo se borra el documento de dispositivo.
+ * - Tokens válidos: se marca validatedAt, y no se vuelven a revisar hasta dentro de otros 30 días.
+ * Lleva contadores de tokens examinados, eliminados y conservados (log y maintenance/tokenSweep).
+ */
+export const sweepStaleTokens = functions
+    .runWith({ timeoutSeconds: CLEANUP_TIMEOUT_SECONDS, memory: '512MB' })
+    .pubsub.schedule('every 24 hours')
+    .onRun(async (context) => {
+        const startedAt = Date.now();
+        const db = admin.firestore();
+        const cutoff = admin.firestore.Timestamp.fromMillis(startedAt - STALE_TOKEN_DAYS * 24 * 60 * 60 * 1000);
+        const counters = { examined: 0, removed: 0, retained: 0 };
+
+        try {
+            // Los documentos revisados salen de la consulta (validatedAt nuevo o borrados); el cursor evita repetirlos
+            let lastDoc: admin.firestore.QueryDocumentSnapshot | null = null;
+            while (Date.now() - startedAt < CLEANUP_TIME_BUDGET_MS) {
+                // Necesita el índice de grupo de colecciones de devices.validatedAt (firestore.indexes.json)
+                let query = db.collectionGroup(DEVICES_COLLECTION)
+                    .where('validatedAt', '<', cutoff)
+                    .orderBy('validatedAt')
+                    .limit(SWEEP_PAGE_SIZE);
+                if (lastDoc) {
+                    query = query.startAfter(lastDoc);
+                }
+                const page = await query.get();
+                if (page.empty) {
+                    break;
+                }
+                lastDoc = page.docs[page.docs.length - 1];
+
+                const devices = page.docs.filter(doc => typeof doc.get('token') === 'string' && doc.ref.parent.parent);
+                const invalid = await findInvalidTokens(devices.map(doc => doc.get('token') as string));
+
+                // Tokens inválidos agrupados por usuario: una sola actualización de users/{uid} por usuario
+                const invalidByUser = new Map<string, admin.firestore.QueryDocumentSnapshot[]>();
+                devices.forEach((doc, i) => {
+                    if (invalid[i]) {
+                        const userId = doc.ref.parent.parent!.id;
+                        invalidByUser.set(userId, [...(invalidByUser.get(userId) || []), doc]);
+                    }
+                });
+                // Se leen los usuarios para quitar también el token individual (fcmToken) si es el mismo,
+                // y para no actualizar un usuario que ya no existe (fallaría el lote entero)
+                const userIds = [...invalidByUser.keys()];
+                const userDocs = userIds.length > 0
+                    ? await db.getAll(...userIds.map(userId => db.collection('users').doc(userId)))
+                    : [];
+
+                let batch = db.batch();
+                let batchWrites = 0;
+                const commits: Promise<admin.firestore.WriteResult[]>[] = [];
+                const reserve = (writes: number) => {
+                    if (batchWrites + writes > BATCH_MAX_WRITES) {
+                        commits.push(batch.commit());
+                        batch = db.batch();
+                        batchWrites = 0;
+                    }
+                };
+                userDocs.forEach((userDoc, i) => {
+                    const deviceDocs = invalidByUser.get(userIds[i])!;
+                    const tokens = deviceDocs.map(doc => doc.get('token') as string);
+                    reserve(1 + deviceDocs.length);
+                    if (userDoc.exists) {
+                        const known = readTokens(userDoc.data());
+                        deviceDocs.forEach(doc => known.deviceIdsByToken[doc.get('token')] = doc.id);
+                        batchWrites += addInvalidTokenWrites(batch, userIds[i], known, tokens);
+                    } else {
+                        // Usuario borrado: solo quedan sus documentos de dispositivo
+                        deviceDocs.forEach(doc => batch.delete(doc.ref));
+                        batchWrites += deviceDocs.length;
+                    }
+                    counters.removed += deviceDocs.length;
+                });
+                devices.forEach((doc, i) => {
+                    if (!invalid[i]) {
+                        reserve(1);
+                        batch.update(doc.ref, { validatedAt: admin.firestore.FieldValue.serverTimestamp() });
+                        batchWrites++;
+                        counters.retained++;
+                    }
+                });
+                // Documentos de dispositivo sin token: se borran
+                for (const doc of page.docs) {
+                    if (typeof doc.get('token') !== 'string') {
+                        reserve(1);
+                        batch.delete(doc.ref);
+                        batchWrites++;
+                    }
+                }
+                if (batchWrites > 0) {
+                    commits.push(batch.commit());
+                }
+                await Promise.all(commits);
+                counters.examined += devices.length;
+            }
+
+            await db.doc(SWEEP_STATS_PATH).set({
+                lastRun: { ...counters, at: admin.firestore.FieldValue.serverTimestamp() },
+                examined: admin.firestore.FieldValue.increment(counters.examined),
+                removed: admin.firestore.FieldValue.increment(counters.removed),
+                retained: admin.firestore.FieldValue.increment(counters.retained)
+            }, { merge: true });
+
+            console.log('✅ Barrido de tokens viejos completado:', counters);
+        } catch (error) {
+            console.error('❌ Error en barrido de tokens:', error, counters);
+        }
+    });